@@ -18,29 +18,9 @@
 
 package com.timomcgrath.packstacker;
 
-import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.minimessage.MiniMessage;
-import ninja.leaping.configurate.ConfigurationNode;
-
 public class BukkitResourcePackFactory implements ResourcePackFactory {
   @Override
-  public ResourcePack create(ConfigurationNode root) {
-    String name, hash, url, promptStr;
-    byte priority;
-    boolean isRequired, loadOnJoin;
-
-    name = root.getNode("name").getString();
-    hash = root.getNode("hash").getString();
-    url = root.getNode("url").getString();
-    promptStr = root.getNode("prompt").getString();
-    priority = (byte) root.getNode("priority").getInt(0);
-    isRequired = root.getNode("required").getBoolean(false);
-    loadOnJoin = root.getNode("load_on_join").getBoolean();
-
-    Component prompt = null;
-    if (promptStr != null)
-      prompt = MiniMessage.miniMessage().deserialize(promptStr);
-
-    return new ResourcePack(PackStacker.getPlugin(), name, hash, prompt, url, priority, isRequired, loadOnJoin);
+  public ResourcePack create(PackDefinition definition) {
+    return new ResourcePack(PackStacker.getPlugin(), definition);
   }
 }
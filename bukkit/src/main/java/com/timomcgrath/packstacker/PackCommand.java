@@ -49,6 +49,13 @@ public class PackCommand extends AbstractPackCommand implements CommandExecutor,
     return suggest(sender, args);
   }
 
+  /**
+   * Completes the arguments of /pack from any thread.
+   */
+  public List<String> complete(@NotNull CommandSender sender, @NotNull String[] args) {
+    return suggest(sender, args);
+  }
+
   @Override
   protected void parseLoadCommand(Audience sender, String[] args) {
     if (args.length == 0) {
@@ -65,8 +72,8 @@ public class PackCommand extends AbstractPackCommand implements CommandExecutor,
             return;
           }
 
-          boolean loaded = PackStackerUtil.loadByName(player, player.getUniqueId(), arg,
-                  pack -> PlayerProtectionManager.getInstance().beginProtection(player, List.of(pack)));
+          boolean loaded = PackStackerUtil.loadByName(player, player.getUniqueId(), arg, null,
+                  packs -> PlayerProtectionManager.getInstance().beginProtection(player, packs));
           if (!loaded)
             Messaging.sendMsg(sender, "invalid_pack", arg);
         } else
@@ -82,8 +89,8 @@ public class PackCommand extends AbstractPackCommand implements CommandExecutor,
 
         Player player = Bukkit.getPlayer(args[1].toLowerCase());
         if (player != null) {
-          boolean loaded = PackStackerUtil.loadByName(player, player.getUniqueId(), arg,
-                  pack -> PlayerProtectionManager.getInstance().beginProtection(player, List.of(pack)));
+          boolean loaded = PackStackerUtil.loadByName(player, player.getUniqueId(), arg, null,
+                  packs -> PlayerProtectionManager.getInstance().beginProtection(player, packs));
           if (!loaded)
             Messaging.sendMsg(sender, "invalid_pack", arg);
         } else
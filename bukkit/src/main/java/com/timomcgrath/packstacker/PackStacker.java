@@ -20,6 +20,9 @@ package com.timomcgrath.packstacker;
 
 import com.timomcgrath.packstacker.listener.PackListener;
 import com.timomcgrath.packstacker.listener.ProtectionListener;
+import com.timomcgrath.packstacker.listener.SyncListener;
+import com.timomcgrath.packstacker.listener.TabCompleteListener;
+import com.timomcgrath.packstacker.listener.WorldListener;
 import net.kyori.adventure.audience.Audience;
 import org.bukkit.Bukkit;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -30,7 +33,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 public final class PackStacker extends JavaPlugin implements PackPlugin {
     private static PackStacker plugin;
@@ -44,14 +47,40 @@ public final class PackStacker extends JavaPlugin implements PackPlugin {
     @Override
     public void onEnable() {
         reloadAll();
+        // Players already online after a plugin reload never fire a join event
+        Bukkit.getOnlinePlayers().forEach(player -> OnlinePlayerIndex.getInstance().add(player.getUniqueId(), player.getName()));
 
-        getCommand("pack").setExecutor(new PackCommand(this));
+        PackCommand command = new PackCommand(this);
+        getCommand("pack").setExecutor(command);
         Bukkit.getPluginManager().registerEvents(new PackListener(), this);
         Bukkit.getPluginManager().registerEvents(new ProtectionListener(), this);
+        Bukkit.getPluginManager().registerEvents(new WorldListener(), this);
+        if (TabCompleteListener.isSupported())
+            Bukkit.getPluginManager().registerEvents(new TabCompleteListener(command), this);
+
+        Bukkit.getMessenger().registerOutgoingPluginChannel(this, PackSync.CHANNEL);
+        Bukkit.getMessenger().registerIncomingPluginChannel(this, PackSync.CHANNEL, new SyncListener());
+        PackSync.getInstance().enable(this, (playerId, data) -> {
+            Player player = Bukkit.getPlayer(playerId);
+            if (player != null)
+                player.sendPluginMessage(this, PackSync.CHANNEL, data);
+        });
+
+        long sweepTicks = PlayerPackCache.SWEEP_INTERVAL_MINUTES * 60 * 20;
+        Bukkit.getScheduler().runTaskTimer(this, this::sweepSessions, sweepTicks, sweepTicks);
+    }
+
+    private void sweepSessions() {
+        int evicted = PlayerPackCache.getInstance().sweep(this::isOnline);
+        OnlinePlayerIndex.getInstance().sweep(this::isOnline);
+        if (evicted > 0)
+            getLogger().info("Evicted " + evicted + " stale player session(s), " + PlayerPackCache.getInstance().size() + " remaining.");
     }
 
     @Override
     public void onDisable() {
+        PackDirectoryWatcher.shutdown();
+        FileLoader.shutdown();
     }
 
     @Override
@@ -61,16 +90,21 @@ public final class PackStacker extends JavaPlugin implements PackPlugin {
     }
 
     @Override
-    public void reloadPacks() {
+    public CompletableFuture<PackLoadReport> reloadPacks() {
         FileLoader fileLoader = new FileLoader(getDataFolder().toPath());
-        fileLoader.loadPacks(new BukkitResourcePackFactory());
+        fileLoader.loadConfig();
+        ResourcePackFactory factory = new BukkitResourcePackFactory();
+        return fileLoader.loadPacksAsync(factory).thenApply(report -> {
+            runLater(() -> report.getDiff().dispatch(this), 0);
+            PackDirectoryWatcher.configure(this, fileLoader, factory);
+            return report;
+        });
     }
 
     @Override
-    public void reloadAll() {
-        FileLoader fileLoader = new FileLoader(getDataFolder().toPath());
-        fileLoader.loadMessages();
-        fileLoader.loadPacks(new BukkitResourcePackFactory());
+    public CompletableFuture<PackLoadReport> reloadAll() {
+        reloadMessages();
+        return reloadPacks();
     }
 
     @Override
@@ -83,7 +117,22 @@ public final class PackStacker extends JavaPlugin implements PackPlugin {
 
     @Override
     public List<String> getOnlinePlayers() {
-        return Bukkit.getOnlinePlayers().parallelStream().map(player -> player.getName().toLowerCase()).collect(Collectors.toList());
+        return OnlinePlayerIndex.getInstance().getNames();
+    }
+
+    @Override
+    public boolean isOnline(UUID playerId) {
+        return Bukkit.getPlayer(playerId) != null;
+    }
+
+    @Override
+    public Audience getAudience(UUID playerId) {
+        return Bukkit.getPlayer(playerId);
+    }
+
+    @Override
+    public void runLater(Runnable task, long delayMillis) {
+        Bukkit.getScheduler().runTaskLater(this, task, delayMillis / 50);
     }
 
     @NotNull
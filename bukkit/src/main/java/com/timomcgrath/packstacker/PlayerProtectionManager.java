@@ -32,8 +32,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.minimessage.MiniMessage;
 
 /**
  * Tracks temporary player protection while resource packs are being requested.
@@ -67,7 +65,7 @@ public final class PlayerProtectionManager {
         state.movementSeen = false;
         state.allPacksFinished = false;
         if (!state.active) {
-            player.sendMessage(mm("🛡 <green>Đã bật chế độ bảo vệ khi tải gói.</green> <gray>Bạn tạm thời an toàn trong lúc tải.</gray>"));
+            Messaging.sendMsg(player, "protection_enabled");
         }
 
         packs.forEach(pack -> state.pendingPackIds.add(pack.getUuid()));
@@ -162,9 +160,9 @@ public final class PlayerProtectionManager {
 
         restoreDefaults(player);
         if (timedOut) {
-            player.sendMessage(mm("⚠ <red>Đã tắt chế độ bảo vệ sau thời gian chờ.</red> <gray>Bạn có thể bị sát thương và bị đẩy.</gray>"));
+            Messaging.sendMsg(player, "protection_timed_out");
         } else {
-            player.sendMessage(mm("⚠ <yellow>Đã tắt chế độ bảo vệ.</yellow> <gray>Bạn có thể bị sát thương và bị đẩy.</gray>"));
+            Messaging.sendMsg(player, "protection_released");
         }
 
         showReleaseBar(player);
@@ -209,7 +207,7 @@ public final class PlayerProtectionManager {
         cancelBossBarHide(player.getUniqueId());
         BossBar bar = bossBars.computeIfAbsent(player.getUniqueId(), id -> Bukkit.createBossBar("", BarColor.GREEN, BarStyle.SOLID));
         bar.setColor(BarColor.GREEN);
-        bar.setTitle("🛡 Đang bật bảo vệ khi tải gói");
+        bar.setTitle(Messaging.getStr(player, "protection_bar_active"));
         bar.setVisible(true);
         bar.setProgress(1.0);
         if (!bar.getPlayers().contains(player)) {
@@ -221,7 +219,7 @@ public final class PlayerProtectionManager {
         UUID playerId = player.getUniqueId();
         BossBar bar = bossBars.computeIfAbsent(playerId, id -> Bukkit.createBossBar("", BarColor.YELLOW, BarStyle.SOLID));
         bar.setColor(BarColor.YELLOW);
-        bar.setTitle("⚠ Bảo vệ đã tắt");
+        bar.setTitle(Messaging.getStr(player, "protection_bar_released"));
         bar.setVisible(true);
         bar.setProgress(1.0);
         if (!bar.getPlayers().contains(player)) {
@@ -261,8 +259,4 @@ public final class PlayerProtectionManager {
             task.cancel();
         }
     }
-
-    private Component mm(String text) {
-        return MiniMessage.miniMessage().deserialize(text);
-    }
 }
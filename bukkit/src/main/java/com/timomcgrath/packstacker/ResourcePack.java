@@ -28,16 +28,24 @@ import java.util.UUID;
 import com.timomcgrath.packstacker.PlayerProtectionManager;
 
 public class ResourcePack extends AbstractResourcePack {
+    /**
+     * @deprecated build the pack from a {@link PackDefinition} instead
+     */
+    @Deprecated
     public ResourcePack(PackPlugin plugin, String name, String hash, Component prompt, String url, byte priority, boolean isRequired, boolean loadOnJoin) {
         super(name, hash, prompt, url, priority, isRequired, loadOnJoin, plugin);
     }
 
+    public ResourcePack(PackPlugin plugin, PackDefinition definition) {
+        super(definition, plugin);
+    }
+
     @Override
     public void packCallback(UUID packId, ResourcePackStatus status, Audience audience, UUID playerId) {
         Player player = Bukkit.getPlayer(playerId);
         PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
 
-        if (player == null)
+        if (player == null || packPlayer == null)
             return;
 
         AbstractResourcePack pack = PackCache.getInstance().get(packId);
@@ -46,10 +54,11 @@ public class ResourcePack extends AbstractResourcePack {
 
         switch (status) {
             case SUCCESSFULLY_LOADED:
-                packPlayer.addPack(pack);
-                audience.sendMessage(Messaging.get("pack_successfully_loaded", pack.getName()));
+                packPlayer.transition(pack, PackTransition.LOADED);
+                Messaging.sendMsg(audience, "pack_successfully_loaded", pack.getName());
                 break;
             case ACCEPTED:
+                packPlayer.transition(pack, PackTransition.ACCEPTED);
                 Messaging.sendMsg(audience, "pack_accepted", pack.getName());
                 break;
             case DECLINED:
@@ -57,9 +66,10 @@ public class ResourcePack extends AbstractResourcePack {
             case INVALID_URL:
             case FAILED_RELOAD:
             case FAILED_DOWNLOAD:
-                audience.sendMessage(Messaging.get("pack_failed_load", pack.getName(), status.name()));
+                packPlayer.transition(pack, PackTransition.FAILED);
+                Messaging.sendMsg(audience, "pack_failed_load", pack.getName(), status.name());
                 if (pack.isRequired() && !player.hasPermission("pack.bypass"))
-                    player.kick(Messaging.get("pack_req_kick"));
+                    player.kick(Messaging.get(player, "pack_req_kick"));
         }
 
         PlayerProtectionManager.getInstance().onPackProcessed(playerId, packId);
@@ -21,14 +21,19 @@ package com.timomcgrath.packstacker.listener;
 import com.timomcgrath.packstacker.PackStackerUtil;
 import com.timomcgrath.packstacker.PlayerPackCache;
 import com.timomcgrath.packstacker.GeyserDetector;
-import com.timomcgrath.packstacker.AbstractResourcePack;
+import com.timomcgrath.packstacker.OnlinePlayerIndex;
+import com.timomcgrath.packstacker.PackPlayer;
+import com.timomcgrath.packstacker.PackSync;
+import com.timomcgrath.packstacker.PackStacker;
 import com.timomcgrath.packstacker.PlayerProtectionManager;
 import org.bukkit.Bukkit;
-import java.util.List;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
 public class PackListener implements Listener {
@@ -38,6 +43,7 @@ public class PackListener implements Listener {
     Player player = event.getPlayer();
     Bukkit.getLogger().info("PackListener: Player join: " + player.getName() + " (" + player.getUniqueId() + ")");
     PlayerPackCache.getInstance().initPlayer(player.getUniqueId());
+    OnlinePlayerIndex.getInstance().add(player.getUniqueId(), player.getName());
 
     boolean isGeyser = false;
     try {
@@ -51,25 +57,40 @@ public class PackListener implements Listener {
       return;
     }
 
-    List<AbstractResourcePack> packs = PackStackerUtil.getPacksToLoadOnJoin();
-    if (packs == null || packs.isEmpty()) {
-      Bukkit.getLogger().info("PackListener: No packs to load on join for player " + player.getName());
-      return;
-    }
+    // Behind a proxy sharing pack state, packs it already sent are skipped
+    PackSync.getInstance().awaitSnapshot(player.getUniqueId(), () -> {
+      PackStackerUtil.loadJoinPlan(PackStacker.getPlugin(), player, player.getUniqueId(), requested -> {
+        Bukkit.getLogger().info("PackListener: Sent " + requested.size() + " pack(s) to player " + player.getName());
+        PlayerProtectionManager.getInstance().beginProtection(player, requested);
+      });
+      // Joins the same client reload as the join plan
+      PackStackerUtil.changeWorld(PackStacker.getPlugin(), player, player.getUniqueId(), null, player.getWorld().getName());
+    });
+  }
 
-    StringBuilder names = new StringBuilder();
-    for (AbstractResourcePack p : packs) {
-      if (names.length() > 0) names.append(", ");
-      names.append(p.getName());
-    }
-    Bukkit.getLogger().info("PackListener: Sending " + packs.size() + " pack(s) to player " + player.getName() + ": " + names.toString());
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPlayerMove(PlayerMoveEvent event) {
+    // Looking around fires this every tick, only walking counts as activity
+    if (event.hasChangedBlock())
+      touch(event.getPlayer());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onPlayerCommand(PlayerCommandPreprocessEvent event) {
+    touch(event.getPlayer());
+  }
 
-    List<AbstractResourcePack> requested = PackStackerUtil.loadMultiple(player, player.getUniqueId(), packs);
-    PlayerProtectionManager.getInstance().beginProtection(player, requested);
+  // Deferred packs wait until the player stops moving and typing
+  private void touch(Player player) {
+    PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(player.getUniqueId());
+    if (packPlayer != null)
+      packPlayer.touch();
   }
 
   @EventHandler
   public void onPlayerQuit(PlayerQuitEvent event) {
-    PlayerPackCache.getInstance().removePlayer(event.getPlayer().getUniqueId());
+    Player player = event.getPlayer();
+    PlayerPackCache.getInstance().removePlayer(player.getUniqueId());
+    OnlinePlayerIndex.getInstance().remove(player.getUniqueId(), player.getName());
   }
 }
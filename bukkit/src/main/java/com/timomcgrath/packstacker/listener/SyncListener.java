@@ -0,0 +1,35 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker.listener;
+
+import com.timomcgrath.packstacker.PackSync;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.messaging.PluginMessageListener;
+
+/**
+ * Receives the pack state the proxy shares over {@link PackSync#CHANNEL}.
+ */
+public class SyncListener implements PluginMessageListener {
+
+    @Override
+    public void onPluginMessageReceived(String channel, Player player, byte[] message) {
+        if (PackSync.CHANNEL.equals(channel))
+            PackSync.getInstance().receive(player.getUniqueId(), message);
+    }
+}
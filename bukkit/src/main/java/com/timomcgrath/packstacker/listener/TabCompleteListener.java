@@ -0,0 +1,74 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker.listener;
+
+import com.destroystokyo.paper.event.server.AsyncTabCompleteEvent;
+import com.timomcgrath.packstacker.PackCommand;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Answers /pack completions through Paper's async tab completion, keeping them off the main thread.
+ * Only registered on Paper, Spigot keeps using {@link PackCommand#onTabComplete}.
+ */
+public class TabCompleteListener implements Listener {
+    private static final Set<String> LABELS = Set.of("pack", "resourcepack", "packstacker");
+    private final PackCommand command;
+
+    public TabCompleteListener(PackCommand command) {
+        this.command = command;
+    }
+
+    @EventHandler
+    public void onAsyncTabComplete(AsyncTabCompleteEvent event) {
+        if (event.isHandled() || !event.isCommand())
+            return;
+
+        String buffer = event.getBuffer();
+        int start = buffer.startsWith("/") ? 1 : 0;
+        int space = buffer.indexOf(' ', start);
+        if (space < 0)
+            return;
+
+        String label = buffer.substring(start, space).toLowerCase(Locale.ROOT);
+        if (label.startsWith("packstacker:"))
+            label = label.substring("packstacker:".length());
+        if (!LABELS.contains(label))
+            return;
+
+        String[] args = buffer.substring(space + 1).split(" ", -1);
+        event.setCompletions(command.complete(event.getSender(), args));
+        event.setHandled(true);
+    }
+
+    /**
+     * @return whether the server provides Paper's async tab completion event.
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName("com.destroystokyo.paper.event.server.AsyncTabCompleteEvent");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker.listener;
+
+import com.timomcgrath.packstacker.GeyserDetector;
+import com.timomcgrath.packstacker.PackStacker;
+import com.timomcgrath.packstacker.PackStackerUtil;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerPortalEvent;
+
+/**
+ * Loads the packs bound to a world through the worlds pack option when a player enters it, and starts
+ * their download as soon as the player steps into a portal leading there.
+ */
+public class WorldListener implements Listener {
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldChange(PlayerChangedWorldEvent event) {
+        Player player = event.getPlayer();
+        if (isBedrock(player))
+            return;
+
+        PackStackerUtil.changeWorld(PackStacker.getPlugin(), player, player.getUniqueId(),
+                event.getFrom().getName(), player.getWorld().getName());
+    }
+
+    // Fired before the destination world is loaded for the player, so the download overlaps the teleport
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPortal(PlayerPortalEvent event) {
+        Player player = event.getPlayer();
+        Location to = event.getTo();
+        World world = to == null ? null : to.getWorld();
+        if (world == null || world.equals(player.getWorld()) || isBedrock(player))
+            return;
+
+        PackStackerUtil.prefetchWorld(PackStacker.getPlugin(), player, player.getUniqueId(), world.getName());
+    }
+
+    private boolean isBedrock(Player player) {
+        try {
+            return GeyserDetector.isGeyserPlayer(player);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public abstract class AbstractPackCommand {
@@ -36,6 +37,9 @@ public abstract class AbstractPackCommand {
         this.plugin = plugin;
     }
 
+    /**
+     * Only reads the published catalog snapshot, so it is safe to call from async completion threads.
+     */
     protected List<String> suggest(Audience sender, String[] args) {
         if (args.length == 0)
             return packTabCompletes;
@@ -44,26 +48,26 @@ public abstract class AbstractPackCommand {
             case "load" -> {
                 switch (args.length) {
                     case 2 -> {
-                            return filterByStart(PackCache.getInstance().getPackNames(), args[1]);
+                            return PackCache.getInstance().getPackNamesStartingWith(args[1]);
                     }
                     case 3 -> {
-                            return plugin.getOnlinePlayers();
+                            return OnlinePlayerIndex.getInstance().getNamesStartingWith(args[2]);
                     }
                 }
             }
             case "unload" -> {
                 switch (args.length) {
                     case 2 -> {
-                        return filterByStart(PackCache.getInstance().getPackNames(), args[1]);
+                        return PackCache.getInstance().getPackNamesStartingWith(args[1]);
                     }
                     case 3 -> {
-                        return plugin.getOnlinePlayers();
+                        return OnlinePlayerIndex.getInstance().getNamesStartingWith(args[2]);
                     }
                 }
             }
             case "list" -> {
                 if (args.length == 2)
-                    return filterByStart(PackCache.getInstance().getPackNames(), args[1]);
+                    return PackCache.getInstance().getPackNamesStartingWith(args[1]);
             }
             case "reload" -> {
                 if (args.length == 2)
@@ -120,8 +124,7 @@ public abstract class AbstractPackCommand {
 
     void parseReloadCommand(Audience sender, String[] args) {
         if (args.length == 0) {
-            plugin.reloadAll();
-            Messaging.sendMsg(sender, "reload_cfg_all");
+            reportReload(sender, plugin.reloadAll(), "reload_cfg_all");
             return;
         }
 
@@ -137,8 +140,7 @@ public abstract class AbstractPackCommand {
             case "packs" -> {
                 if (plugin.hasPermission(sender, "pack.reload.packs")) {
 
-                    plugin.reloadPacks();
-                    Messaging.sendMsg(sender, "reload_cfg_packs");
+                    reportReload(sender, plugin.reloadPacks(), "reload_cfg_packs");
                     return;
                 }
             }
@@ -146,8 +148,7 @@ public abstract class AbstractPackCommand {
                 if (plugin.hasPermission(sender, "pack.reload.all") ||
                         plugin.hasPermission(sender, "pack.reload.packs") && plugin.hasPermission(sender, "pack.reload.messages")) {
 
-                    plugin.reloadAll();
-                    Messaging.sendMsg(sender, "reload_cfg_all");
+                    reportReload(sender, plugin.reloadAll(), "reload_cfg_all");
                     return;
                 }
             }
@@ -159,6 +160,23 @@ public abstract class AbstractPackCommand {
         Messaging.sendMsg(sender, "cmd_no_perm");
     }
 
+    /**
+     * Tells the sender once a pack reload running in the background completes, listing every file that failed.
+     * The feedback is sent from the platform scheduler, not the loader thread.
+     */
+    private void reportReload(Audience sender, CompletableFuture<PackLoadReport> reload, String doneKey) {
+        reload.whenComplete((report, error) -> plugin.runLater(() -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                Messaging.sendMsg(sender, "reload_failed", cause.getMessage());
+                return;
+            }
+
+            Messaging.sendMsg(sender, doneKey);
+            report.getFailures().forEach((file, reason) -> Messaging.sendMsg(sender, "reload_pack_failed", file.getFileName(), reason));
+        }, 0));
+    }
+
     void parseListCommand(Audience sender, String[] args) {
         if (args.length != 0) {
             Messaging.sendMsg(sender, "pack_help");
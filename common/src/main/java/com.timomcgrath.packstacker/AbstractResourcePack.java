@@ -19,53 +19,138 @@
 package com.timomcgrath.packstacker;
 
 import net.kyori.adventure.audience.Audience;
+import net.kyori.adventure.identity.Identity;
+import net.kyori.adventure.resource.ResourcePackCallback;
 import net.kyori.adventure.resource.ResourcePackInfo;
 import net.kyori.adventure.resource.ResourcePackRequest;
 import net.kyori.adventure.resource.ResourcePackStatus;
 import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
 import org.jetbrains.annotations.NotNull;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 
 public abstract class AbstractResourcePack {
     private final String hash;
-    private UUID uuid;
+    private final byte[] hashBytes;
+    private final UUID uuid;
     private final String name, url;
-    private final Component prompt;
+    private final String promptSource;
+    // Compiled on first use through PromptCache
+    private Component prompt;
     private final byte priority;
     private final boolean isRequired, loadOnJoin;
+    private final PackPhase phase;
+    private final long size;
+    private final List<String> worlds;
     private final ResourcePackInfo packInfo;
+    // Shared by every request this pack leads, the player is resolved from the audience instead of captured
+    private final ResourcePackCallback callback;
+    // This pack on its own, built on first send and reused for every player
+    private volatile PackPlan plan;
     private final PackPlugin plugin;
+    private int ordinal = -1;
 
+    /**
+     * @param prompt the prompt, or null for no prompt
+     * @deprecated prompts are compiled lazily from their MiniMessage source, build the pack from a
+     * {@link PackDefinition} instead
+     */
+    @Deprecated
     public AbstractResourcePack(String name, String hash, Component prompt, String url, byte priority, boolean isRequired, boolean loadOnJoin, PackPlugin plugin) {
+        this(name, hash, prompt == null ? null : MiniMessage.miniMessage().serialize(prompt), url, priority, isRequired, loadOnJoin,
+                isRequired || loadOnJoin ? PackPhase.JOIN : PackPhase.ON_DEMAND, 0, List.of(), plugin);
+        this.prompt = prompt;
+    }
+
+    public AbstractResourcePack(PackDefinition definition, PackPlugin plugin) {
+        this(definition.getName(), definition.getHash(), definition.getPrompt(), definition.getUrl(), definition.getPriority(),
+                definition.isRequired(), definition.loadOnJoin(), definition.getPhase(), definition.getSize(), definition.getWorlds(), plugin);
+    }
+
+    private AbstractResourcePack(String name, String hash, String prompt, String url, byte priority, boolean isRequired, boolean loadOnJoin,
+                                 PackPhase phase, long size, List<String> worlds, PackPlugin plugin) {
         this.plugin = plugin;
-        UUID uuid = UUID.randomUUID();
         this.name = name;
         this.hash = hash.toLowerCase();
-        this.uuid = uuid;
-        this.prompt = prompt;
+        this.hashBytes = parseHash(this.hash);
+        this.uuid = packId(name, this.hash);
+        this.promptSource = prompt;
         this.url = url;
         this.priority = priority;
         this.isRequired = isRequired;
         this.loadOnJoin = loadOnJoin;
+        this.phase = phase;
+        this.size = size;
+        this.worlds = worlds;
         this.packInfo = ResourcePackInfo.resourcePackInfo(uuid, URI.create(url), hash);
+        this.callback = (packId, status, audience) -> {
+            UUID playerId = audience.get(Identity.UUID).orElse(null);
+            if (playerId != null)
+                packCallback(packId, status, audience, playerId);
+        };
+    }
+
+    /**
+     * Derives a pack id from its name and content hash, so reloading an unchanged pack keeps the id the
+     * client already knows, while changed content gets a new one.
+     */
+    public static UUID packId(String name, String hash) {
+        String key = name.toLowerCase(Locale.ROOT) + ':' + hash.toLowerCase(Locale.ROOT);
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Queues this pack in the player's coalescing window, see {@link StackTransaction}.
+     *
+     * Nothing is queued if the player already has the pack, is downloading it, or left.
+     */
     public void load(@NotNull Audience audience, UUID playerId) {
         PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null)
+            return;
 
         if (packPlayer.hasPack(this)) {
             Messaging.sendMsg(audience, "pack_already_loaded", name);
             return;
         }
 
-        ResourcePackRequest request = ResourcePackRequest.resourcePackRequest()
-                .packs(packInfo)
-                .prompt(prompt)
-                .build().callback((packId, status, aud) -> packCallback(packId, status, aud, playerId));
-        audience.sendResourcePacks(request);
-        request.callback();
+        if (packPlayer.isPending(this)) {
+            Messaging.sendMsg(audience, "pack_pending", name);
+            return;
+        }
+
+        StackTransaction.coalesce(plugin, audience, playerId, transaction -> transaction.load(this));
+    }
+
+    /**
+     * @return the request for this pack alone, shared between players.
+     */
+    public ResourcePackRequest getRequest() {
+        return getPlan().getRequest();
+    }
+
+    /**
+     * @return a plan holding only this pack.
+     */
+    public PackPlan getPlan() {
+        PackPlan plan = this.plan;
+        if (plan == null)
+            this.plan = plan = PackPlan.of(List.of(this));
+        return plan;
+    }
+
+    /**
+     * @return the callback shared by every request this pack leads, it forwards to
+     * {@link #packCallback(UUID, ResourcePackStatus, Audience, UUID)} with the player taken from the audience.
+     */
+    public ResourcePackCallback getCallback() {
+        return callback;
     }
 
     public void unload(@NotNull Audience audience, UUID playerId) {
@@ -74,29 +159,77 @@ public abstract class AbstractResourcePack {
             return;
         }
 
-        audience.removeResourcePacks(uuid);
-        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
-        packPlayer.removePack(this);
+        StackTransaction.coalesce(plugin, audience, playerId, transaction -> transaction.unload(this));
+    }
+
+    private static byte[] parseHash(String hash) {
+        try {
+            return HexFormat.of().parseHex(hash);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    PackPlugin getPlugin() {
+        return plugin;
     }
 
     public abstract void packCallback(UUID packId, ResourcePackStatus status, Audience audience, UUID playerId);
 
+    /**
+     * @return the dense index assigned by the {@link PackCatalog} holding this pack, or -1 if not cataloged.
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
     public String getHash() {
         return hash;
     }
 
+    /**
+     * @return the decoded SHA-1 hash, or null if the configured hash is not valid hex. Must not be modified.
+     */
+    byte[] getHashBytes() {
+        return hashBytes;
+    }
+
     public UUID getUuid() {
         return uuid;
     }
 
+    /**
+     * @deprecated pack ids are derived from name and hash, see {@link #packId(String, String)}, so clients and
+     * the other side of a proxy recognise an unchanged pack. They can no longer be assigned.
+     * @throws UnsupportedOperationException always
+     */
+    @Deprecated
+    public void setUuid(UUID uuid) {
+        throw new UnsupportedOperationException("Pack ids are derived from the pack name and hash");
+    }
+
     public String getName() {
         return name;
     }
 
     public Component getPrompt() {
+        Component prompt = this.prompt;
+        if (prompt == null && promptSource != null)
+            this.prompt = prompt = PromptCache.getInstance().get(promptSource);
         return prompt;
     }
 
+    /**
+     * @return the MiniMessage source of the prompt, or null if this pack has none.
+     */
+    public String getPromptSource() {
+        return promptSource;
+    }
+
     public String getUrl() {
         return url;
     }
@@ -109,12 +242,29 @@ public abstract class AbstractResourcePack {
         return isRequired;
     }
 
+    /**
+     * @return the load_on_join option as configured, see {@link #getPhase()} for when the pack is sent.
+     */
     public boolean loadOnJoin() {
         return loadOnJoin;
     }
 
-    public void setUuid(UUID uuid) {
-        this.uuid = uuid;
+    public PackPhase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the download size in bytes, or 0 if not configured.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the lowercase names of the worlds this pack is loaded in, empty if it is not bound to a world.
+     */
+    public List<String> getWorlds() {
+        return worlds;
     }
 
     public ResourcePackInfo getPackInfo() {
@@ -0,0 +1,278 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Limits how many pack downloads run at once and how many bytes per second are handed to clients, so a
+ * join storm after a restart does not overload the pack host. Waiting requests are admitted lane by lane,
+ * staff first, then requests containing required packs, then everything else, and prefetches last, as earlier
+ * downloads finish.
+ * <p>
+ * With both limits set to 0 in config.yml every request is admitted right away.
+ */
+public final class AdmissionScheduler {
+    private static final AdmissionScheduler instance = new AdmissionScheduler();
+
+    public enum Lane {
+        STAFF,
+        REQUIRED,
+        STANDARD,
+        // Packs sent ahead of need, see StackTransaction#prefetch
+        PREFETCH
+    }
+
+    private final Object lock = new Object();
+    private final Map<Lane, ArrayDeque<Ticket>> queues = new EnumMap<>(Lane.class);
+    // Downloads promised to admitted tickets that have not sent their request yet
+    private int reserved;
+    // Packs still downloading, by player and ordinal, with the System#nanoTime they are given up at
+    private final Map<UUID, Map<Integer, Long>> downloading = new HashMap<>();
+    private int downloadingCount;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private boolean wakeupScheduled;
+    private PackPlugin plugin;
+
+    private AdmissionScheduler() {
+        for (Lane lane : Lane.values())
+            queues.put(lane, new ArrayDeque<>());
+    }
+
+    /**
+     * A request waiting for, or holding, admission.
+     */
+    public static final class Ticket {
+        private final UUID playerId;
+        private final int downloads;
+        private final long bytes;
+        private final Consumer<Ticket> task;
+        private boolean started;
+
+        private Ticket(UUID playerId, int downloads, long bytes, Consumer<Ticket> task) {
+            this.playerId = playerId;
+            this.downloads = downloads;
+            this.bytes = bytes;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Queues a request. Once admitted the task runs through {@link PackPlugin#runLater(Runnable, long)} and
+     * must report what it sent with {@link #started(Ticket, List)}, even if it sent nothing. If admission
+     * is disabled, or the request downloads nothing, the task runs right away with a null ticket.
+     *
+     * @param downloads the most packs the request will send
+     * @param bytes     the total size of those packs
+     */
+    public void submit(PackPlugin plugin, UUID playerId, Lane lane, int downloads, long bytes, Consumer<Ticket> task) {
+        Config config = Config.get();
+        if (downloads == 0 || config.getAdmissionMaxDownloads() == 0 && config.getAdmissionBytesPerSecond() == 0) {
+            task.accept(null);
+            return;
+        }
+
+        synchronized (lock) {
+            this.plugin = plugin;
+            queues.get(lane).add(new Ticket(playerId, downloads, bytes, task));
+        }
+        pump();
+    }
+
+    /**
+     * Turns the ticket's reservation into tracked downloads for the packs that were actually requested.
+     */
+    public void started(Ticket ticket, List<AbstractResourcePack> requested) {
+        if (ticket == null)
+            return;
+
+        synchronized (lock) {
+            if (ticket.started)
+                return;
+
+            ticket.started = true;
+            reserved -= ticket.downloads;
+            long deadline = System.nanoTime() + Config.get().getPendingTimeoutNanos();
+            Map<Integer, Long> packs = downloading.computeIfAbsent(ticket.playerId, id -> new HashMap<>());
+            for (AbstractResourcePack pack : requested) {
+                if (packs.put(pack.getOrdinal(), deadline) == null)
+                    downloadingCount++;
+            }
+            if (packs.isEmpty())
+                downloading.remove(ticket.playerId);
+        }
+        pump();
+    }
+
+    /**
+     * Frees the download slot of a pack that reached a final status.
+     */
+    void finished(UUID playerId, AbstractResourcePack pack) {
+        synchronized (lock) {
+            Map<Integer, Long> packs = downloading.get(playerId);
+            if (packs == null || packs.remove(pack.getOrdinal()) == null)
+                return;
+
+            downloadingCount--;
+            if (packs.isEmpty())
+                downloading.remove(playerId);
+        }
+        pump();
+    }
+
+    /**
+     * Drops the waiting requests and downloads of a player who left.
+     */
+    void removePlayer(UUID playerId) {
+        synchronized (lock) {
+            queues.values().forEach(queue -> queue.removeIf(ticket -> ticket.playerId.equals(playerId)));
+            Map<Integer, Long> packs = downloading.remove(playerId);
+            if (packs != null)
+                downloadingCount -= packs.size();
+        }
+        pump();
+    }
+
+    /**
+     * @return the number of requests waiting for admission.
+     */
+    public int getQueued() {
+        synchronized (lock) {
+            return queues.values().stream().mapToInt(ArrayDeque::size).sum();
+        }
+    }
+
+    private void pump() {
+        List<Ticket> admitted = new ArrayList<>();
+        long wakeupMillis = -1;
+        PackPlugin plugin;
+        synchronized (lock) {
+            plugin = this.plugin;
+            Config config = Config.get();
+            long now = System.nanoTime();
+            long nextExpiry = expire(now);
+            refill(now, config.getAdmissionBytesPerSecond());
+
+            // Lanes are strict, nothing from a lower lane overtakes a waiting request from a higher one
+            outer:
+            for (Lane lane : Lane.values()) {
+                ArrayDeque<Ticket> queue = queues.get(lane);
+                Ticket ticket;
+                while ((ticket = queue.peek()) != null) {
+                    long wait = waitMillis(ticket, config, nextExpiry, now);
+                    if (wait != 0) {
+                        wakeupMillis = wait;
+                        break outer;
+                    }
+
+                    queue.poll();
+                    reserved += ticket.downloads;
+                    if (config.getAdmissionBytesPerSecond() > 0)
+                        tokens -= ticket.bytes;
+                    admitted.add(ticket);
+                }
+            }
+
+            if (wakeupMillis > 0 && !wakeupScheduled)
+                wakeupScheduled = true;
+            else
+                wakeupMillis = -1;
+        }
+
+        if (plugin == null)
+            return;
+
+        for (Ticket ticket : admitted)
+            plugin.runLater(() -> ticket.task.accept(ticket), 0);
+
+        if (wakeupMillis > 0) {
+            plugin.runLater(() -> {
+                synchronized (lock) {
+                    wakeupScheduled = false;
+                }
+                pump();
+            }, wakeupMillis);
+        }
+    }
+
+    /**
+     * @return 0 if the ticket can be admitted now, the milliseconds until it may fit, or -1 if only a
+     * finishing download can make room
+     */
+    private long waitMillis(Ticket ticket, Config config, long nextExpiry, long now) {
+        int max = config.getAdmissionMaxDownloads();
+        int busy = reserved + downloadingCount;
+        // A single request larger than the limit is still admitted once nothing else is running
+        if (max > 0 && busy > 0 && busy + ticket.downloads > max)
+            return nextExpiry == Long.MAX_VALUE ? -1 : Math.max(1, (nextExpiry - now) / 1_000_000 + 1);
+
+        long rate = config.getAdmissionBytesPerSecond();
+        double needed = Math.min(ticket.bytes, rate);
+        if (rate > 0 && tokens < needed)
+            return Math.max(1, (long) Math.ceil((needed - tokens) * 1000 / rate));
+        return 0;
+    }
+
+    /**
+     * Gives up on downloads past their pending timeout, the client never reported a final status for them.
+     *
+     * @return the earliest remaining deadline, or Long.MAX_VALUE if nothing is downloading
+     */
+    private long expire(long now) {
+        long next = Long.MAX_VALUE;
+        for (Iterator<Map<Integer, Long>> players = downloading.values().iterator(); players.hasNext(); ) {
+            Map<Integer, Long> packs = players.next();
+            for (Iterator<Long> deadlines = packs.values().iterator(); deadlines.hasNext(); ) {
+                long deadline = deadlines.next();
+                if (deadline - now <= 0) {
+                    deadlines.remove();
+                    downloadingCount--;
+                } else if (next == Long.MAX_VALUE || deadline - next < 0) {
+                    next = deadline;
+                }
+            }
+            if (packs.isEmpty())
+                players.remove();
+        }
+        return next;
+    }
+
+    private void refill(long now, long rate) {
+        if (rate <= 0) {
+            refilledAt = now;
+            return;
+        }
+
+        tokens = Math.min(rate, tokens + (now - refilledAt) * (double) rate / 1_000_000_000L);
+        refilledAt = now;
+    }
+
+    public static AdmissionScheduler getInstance() {
+        return instance;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import net.kyori.adventure.audience.Audience;
+
+import java.util.*;
+
+/**
+ * The difference between two catalogs, used to bring online players up to date after a reload
+ * without resending packs whose content did not change.
+ */
+public final class CatalogDiff {
+    private final PackCatalog previous;
+    private final List<AbstractResourcePack> added, removed, changed, metadataOnly;
+
+    private CatalogDiff(PackCatalog previous, List<AbstractResourcePack> added, List<AbstractResourcePack> removed,
+                        List<AbstractResourcePack> changed, List<AbstractResourcePack> metadataOnly) {
+        this.previous = previous;
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+        this.metadataOnly = metadataOnly;
+    }
+
+    /**
+     * Compares two catalogs by pack name. A pack whose id changed had its content changed, any other
+     * difference is treated as a metadata only change that needs nothing sent to clients.
+     */
+    public static CatalogDiff between(PackCatalog previous, PackCatalog next) {
+        List<AbstractResourcePack> added = new ArrayList<>(), removed = new ArrayList<>(),
+                changed = new ArrayList<>(), metadataOnly = new ArrayList<>();
+
+        for (AbstractResourcePack pack : next.getPacks()) {
+            AbstractResourcePack old = previous.get(pack.getOrdinal());
+            if (old == null)
+                added.add(pack);
+            else if (!old.getUuid().equals(pack.getUuid()))
+                changed.add(pack);
+            else if (!sameMetadata(old, pack))
+                metadataOnly.add(pack);
+        }
+
+        for (AbstractResourcePack pack : previous.getPacks()) {
+            if (next.get(pack.getOrdinal()) == null)
+                removed.add(pack);
+        }
+
+        return new CatalogDiff(previous, List.copyOf(added), List.copyOf(removed), List.copyOf(changed), List.copyOf(metadataOnly));
+    }
+
+    private static boolean sameMetadata(AbstractResourcePack a, AbstractResourcePack b) {
+        return a.getName().equals(b.getName()) && a.getUrl().equals(b.getUrl())
+                && Objects.equals(a.getPromptSource(), b.getPromptSource()) && a.getPriority() == b.getPriority()
+                && a.isRequired() == b.isRequired() && a.loadOnJoin() == b.loadOnJoin() && a.getPhase() == b.getPhase()
+                && a.getSize() == b.getSize() && a.getWorlds().equals(b.getWorlds());
+    }
+
+    public List<AbstractResourcePack> getAdded() {
+        return added;
+    }
+
+    public List<AbstractResourcePack> getRemoved() {
+        return removed;
+    }
+
+    public List<AbstractResourcePack> getChanged() {
+        return changed;
+    }
+
+    public List<AbstractResourcePack> getMetadataOnly() {
+        return metadataOnly;
+    }
+
+    /**
+     * @return true if online players need packets sent to match the new catalog.
+     */
+    public boolean affectsPlayers() {
+        return !removed.isEmpty() || !changed.isEmpty() || added.stream().anyMatch(this::sendsAdded);
+    }
+
+    /**
+     * Players who joined before the first catalog was published were sent an empty join plan, so the first
+     * load sends them every join pack. Later loads only send newly added required ones.
+     */
+    private boolean sendsAdded(AbstractResourcePack pack) {
+        return pack.getPhase() == PackPhase.JOIN && (pack.isRequired() || previous == PackCatalog.EMPTY);
+    }
+
+    /**
+     * Applies this diff to every tracked player. Players are processed in batches spread over time so a
+     * content change on a full server does not start every download at once. Each player only has the
+     * packs they actually hold or are downloading removed or resent, and newly added join packs sent if they
+     * were sent the join plan.
+     */
+    public void dispatch(PackPlugin plugin) {
+        if (!affectsPlayers())
+            return;
+
+        List<PackPlayer> players = new ArrayList<>(PlayerPackCache.getInstance().getPlayers());
+        dispatchBatch(plugin, players, 0);
+    }
+
+    private void dispatchBatch(PackPlugin plugin, List<PackPlayer> players, int from) {
+        Config config = Config.get();
+        int to = Math.min(players.size(), from + config.getReloadBatchSize());
+        for (int i = from; i < to; i++)
+            dispatch(plugin, players.get(i));
+
+        if (to < players.size())
+            plugin.runLater(() -> dispatchBatch(plugin, players, to), config.getReloadBatchIntervalMillis());
+    }
+
+    private void dispatch(PackPlugin plugin, PackPlayer packPlayer) {
+        Audience audience = plugin.getAudience(packPlayer.getUUID());
+        if (audience == null)
+            return;
+
+        List<UUID> removals = new ArrayList<>();
+        List<AbstractResourcePack> resend = new ArrayList<>();
+
+        // A pack still downloading is replaced too, the client would otherwise end up with the old version
+        for (AbstractResourcePack pack : removed) {
+            if (packPlayer.hasPack(pack) || packPlayer.isPending(pack)) {
+                removals.add(pack.getUuid());
+                packPlayer.transition(pack, PackTransition.REMOVED);
+            }
+        }
+
+        for (AbstractResourcePack pack : changed) {
+            if (packPlayer.hasPack(pack) || packPlayer.isPending(pack)) {
+                // Ordinals are keyed by name, so the old pack shares the new pack's ordinal
+                removals.add(previous.get(pack.getOrdinal()).getUuid());
+                packPlayer.transition(pack, PackTransition.REMOVED);
+                resend.add(pack);
+            }
+        }
+
+        // Players never sent the join plan, such as Bedrock players, get no new join packs either. Deferred
+        // and on demand packs wait for their usual trigger.
+        for (AbstractResourcePack pack : added) {
+            if (sendsAdded(pack) && packPlayer.isJoined())
+                resend.add(pack);
+        }
+
+        if (!removals.isEmpty())
+            audience.removeResourcePacks(removals);
+
+        // Admitted like any other load so a reload does not start every download at once. The commit is
+        // queued behind the removals, so the resent packs are no longer marked as held or in flight.
+        if (!resend.isEmpty())
+            StackTransaction.coalesce(plugin, audience, packPlayer.getUUID(), transaction -> resend.forEach(transaction::load));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import ninja.leaping.configurate.ConfigurationNode;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Plugin settings read from config.yml. Each load builds a new immutable instance and swaps it in.
+ */
+public final class Config {
+    private static final Logger LOGGER = Logger.getLogger("PackStacker");
+    private static volatile Config current = new Config();
+
+    private final long pendingTimeoutNanos;
+    private final int reloadBatchSize;
+    private final long reloadBatchIntervalMillis;
+    private final boolean watchEnabled;
+    private final long watchDebounceMillis;
+    private final int promptCacheSize;
+    private final Map<String, List<String>> bundles;
+    private final long coalesceWindowMillis;
+    private final int admissionMaxDownloads;
+    private final long admissionBytesPerSecond;
+    private final long deferredIdleMillis;
+    private final long deferredMaxDelayMillis;
+    private final boolean unloadWorldPacks;
+    private final long prefetchTimeoutMillis;
+    private final boolean syncEnabled;
+    private final long syncWaitMillis;
+
+    private Config() {
+        this.pendingTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+        this.reloadBatchSize = 20;
+        this.reloadBatchIntervalMillis = 500;
+        this.watchEnabled = false;
+        this.watchDebounceMillis = 250;
+        this.promptCacheSize = 256;
+        this.bundles = Map.of();
+        this.coalesceWindowMillis = 100;
+        this.admissionMaxDownloads = 0;
+        this.admissionBytesPerSecond = 0;
+        this.deferredIdleMillis = 5000;
+        this.deferredMaxDelayMillis = 60000;
+        this.unloadWorldPacks = true;
+        this.prefetchTimeoutMillis = 60000;
+        this.syncEnabled = false;
+        this.syncWaitMillis = 1000;
+    }
+
+    private Config(ConfigurationNode root) {
+        this.pendingTimeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(1, root.getNode("pending_timeout").getLong(60)));
+        this.reloadBatchSize = Math.max(1, root.getNode("reload", "batch_size").getInt(20));
+        this.reloadBatchIntervalMillis = Math.max(0, root.getNode("reload", "batch_interval").getLong(500));
+        this.watchEnabled = root.getNode("watch", "enabled").getBoolean(false);
+        this.watchDebounceMillis = Math.max(0, root.getNode("watch", "debounce").getLong(250));
+        this.promptCacheSize = Math.max(1, root.getNode("prompt_cache_size").getInt(256));
+        this.bundles = loadBundles(root.getNode("bundles"));
+        this.coalesceWindowMillis = Math.max(0, root.getNode("coalesce_window").getLong(100));
+        this.admissionMaxDownloads = Math.max(0, root.getNode("admission", "max_downloads").getInt(0));
+        this.admissionBytesPerSecond = parseRate(root.getNode("admission", "bytes_per_second").getString("0"));
+        this.deferredIdleMillis = Math.max(0, root.getNode("deferred", "idle").getLong(5000));
+        this.deferredMaxDelayMillis = Math.max(0, root.getNode("deferred", "max_delay").getLong(60000));
+        this.unloadWorldPacks = root.getNode("unload_world_packs").getBoolean(true);
+        this.prefetchTimeoutMillis = Math.max(0, root.getNode("prefetch_timeout").getLong(60000));
+        this.syncEnabled = root.getNode("sync", "enabled").getBoolean(false);
+        this.syncWaitMillis = Math.max(0, root.getNode("sync", "wait").getLong(1000));
+    }
+
+    private static long parseRate(String rate) {
+        try {
+            return PackDefinition.parseSize(rate);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Invalid admission.bytes_per_second '" + rate + "', the rate limit is disabled");
+            return 0;
+        }
+    }
+
+    private static Map<String, List<String>> loadBundles(ConfigurationNode node) {
+        Map<String, List<String>> bundles = new HashMap<>();
+        node.getChildrenMap().forEach((key, bundle) -> {
+            List<String> packs = bundle.getChildrenList().stream()
+                    .map(ConfigurationNode::getString)
+                    .filter(name -> name != null && !name.isBlank())
+                    .map(name -> name.toLowerCase(Locale.ROOT))
+                    .toList();
+            if (!packs.isEmpty())
+                bundles.put(key.toString().toLowerCase(Locale.ROOT), packs);
+        });
+        return Map.copyOf(bundles);
+    }
+
+    public static void init(ConfigurationNode root) {
+        current = new Config(root);
+    }
+
+    public static Config get() {
+        return current;
+    }
+
+    /**
+     * @return how long a pack request may stay in flight before the same pack may be requested again.
+     */
+    public long getPendingTimeoutNanos() {
+        return pendingTimeoutNanos;
+    }
+
+    /**
+     * @return how many players have a reload applied to them at once.
+     */
+    public int getReloadBatchSize() {
+        return reloadBatchSize;
+    }
+
+    public long getReloadBatchIntervalMillis() {
+        return reloadBatchIntervalMillis;
+    }
+
+    public boolean isWatchEnabled() {
+        return watchEnabled;
+    }
+
+    /**
+     * @return how long the packs directory must be quiet before pending file changes are applied.
+     */
+    public long getWatchDebounceMillis() {
+        return watchDebounceMillis;
+    }
+
+    /**
+     * @return how many distinct compiled prompts are kept before the least recently used is dropped.
+     */
+    public int getPromptCacheSize() {
+        return promptCacheSize;
+    }
+
+    /**
+     * @return how long pack changes for a player are collected before they are sent as one client reload.
+     */
+    public long getCoalesceWindowMillis() {
+        return coalesceWindowMillis;
+    }
+
+    /**
+     * @return how many pack downloads may run at once, 0 for no limit.
+     */
+    public int getAdmissionMaxDownloads() {
+        return admissionMaxDownloads;
+    }
+
+    /**
+     * @return how many bytes of packs per second may be handed to clients, 0 for no limit.
+     */
+    public long getAdmissionBytesPerSecond() {
+        return admissionBytesPerSecond;
+    }
+
+    /**
+     * @return milliseconds a player must be idle, with no pack download running, before deferred packs are sent.
+     */
+    public long getDeferredIdleMillis() {
+        return deferredIdleMillis;
+    }
+
+    /**
+     * @return milliseconds after joining at which deferred packs are sent even if the player never went idle.
+     */
+    public long getDeferredMaxDelayMillis() {
+        return deferredMaxDelayMillis;
+    }
+
+    /**
+     * @return whether on demand packs bound to a world are unloaded when the player leaves that world.
+     */
+    public boolean isUnloadWorldPacks() {
+        return unloadWorldPacks;
+    }
+
+    /**
+     * @return the milliseconds after which prefetched packs are unloaded if the player never entered their
+     * world, or 0 to keep them.
+     */
+    public long getPrefetchTimeoutMillis() {
+        return prefetchTimeoutMillis;
+    }
+
+    /**
+     * @return whether pack state is shared between a proxy and its backends, see {@link PackSync}.
+     */
+    public boolean isSyncEnabled() {
+        return syncEnabled;
+    }
+
+    /**
+     * @return milliseconds a backend holds its join packs back waiting for the proxy's pack state.
+     */
+    public long getSyncWaitMillis() {
+        return syncWaitMillis;
+    }
+
+    /**
+     * @return the pack names of every bundle, keyed by lowercase bundle name. Names are lowercase.
+     */
+    public Map<String, List<String>> getBundles() {
+        return bundles;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import net.kyori.adventure.audience.Audience;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends {@link PackPhase#DEFERRED} packs once a player has settled in, so cosmetic packs do not add to the
+ * download the player waits on while joining. A player has settled in once no pack request is in flight and
+ * the platform reported no input for the configured idle time, or once the configured maximum delay passed.
+ */
+public final class DeferredDelivery {
+    // Polling interval while the join downloads are still running
+    private static final long PENDING_POLL_MILLIS = 1000;
+
+    private DeferredDelivery() {
+    }
+
+    /**
+     * Starts waiting to send the current catalog's deferred packs to a player. Does nothing if a wait is
+     * already running for this session.
+     */
+    public static void schedule(PackPlugin plugin, UUID playerId) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null || PackCache.getInstance().getCatalog().getDeferredPlan().isEmpty())
+            return;
+
+        if (!packPlayer.claimDeferred())
+            return;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.get().getDeferredMaxDelayMillis());
+        plugin.runLater(() -> check(plugin, packPlayer, deadline), Config.get().getDeferredIdleMillis());
+    }
+
+    private static void check(PackPlugin plugin, PackPlayer packPlayer, long deadline) {
+        UUID playerId = packPlayer.getUUID();
+        // A newer session replaced this one, it schedules its own delivery
+        if (PlayerPackCache.getInstance().getPlayer(playerId) != packPlayer)
+            return;
+
+        Audience audience = plugin.getAudience(playerId);
+        PackPlan plan = PackCache.getInstance().getCatalog().getDeferredPlan();
+        if (audience == null || plan.isEmpty()) {
+            packPlayer.releaseDeferred();
+            return;
+        }
+
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(Config.get().getDeferredIdleMillis());
+        long quietFor = now - packPlayer.getLastActive();
+        if (deadline - now > 0 && (packPlayer.hasPending() || quietFor < idleNanos)) {
+            long waitNanos = packPlayer.hasPending()
+                    ? TimeUnit.MILLISECONDS.toNanos(PENDING_POLL_MILLIS)
+                    : idleNanos - quietFor;
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(Math.min(waitNanos, deadline - now)) + 1;
+            plugin.runLater(() -> check(plugin, packPlayer, deadline), waitMillis);
+            return;
+        }
+
+        packPlayer.releaseDeferred();
+        StackTransaction.coalesce(plugin, audience, playerId, transaction -> transaction.load(plan));
+    }
+}
@@ -26,11 +26,36 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class FileLoader {
+    private static final Logger LOGGER = Logger.getLogger("PackStacker");
+    // Parses pack definitions off the server thread, daemon so it never holds up shutdown
+    private static final ExecutorService LOADER = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+        Thread thread = new Thread(runnable, "PackStacker Pack Loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Serializes catalog writers so an incremental update never builds on a catalog that is being replaced
+    private static final Object PUBLISH_LOCK = new Object();
+    // Locale message files shipped in the jar, copied to the data directory on first load
+    private static final List<String> BUNDLED_LOCALES = List.of("vi_vn");
     private final Path dataDirectory, packsDirectory;
 
+    /**
+     * Stops the loader threads, call when the plugin is disabled so they do not keep its classes loaded.
+     */
+    public static void shutdown() {
+        LOADER.shutdownNow();
+    }
+
     public FileLoader(Path dataDirectory) {
         this.dataDirectory = dataDirectory;
         this.packsDirectory = dataDirectory.resolve("packs");
@@ -46,55 +71,241 @@ public class FileLoader {
 
     }
 
+    public void loadConfig() {
+        Path config = dataDirectory.resolve("config.yml");
+        try {
+            if (Files.notExists(config)) {
+                Files.copy(Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream("config.yml")), config);
+            }
+            YAMLConfigurationLoader loader = YAMLConfigurationLoader.builder().setPath(config).build();
+            Config.init(loader.load());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void loadMessages() {
         Path messages = dataDirectory.resolve("messages.yml");
         try {
             if (Files.notExists(messages)) {
                 Files.copy(Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream("messages.yml")), messages);
             }
+            for (String locale : BUNDLED_LOCALES) {
+                String name = "messages_" + locale + ".yml";
+                Path localeMessages = dataDirectory.resolve(name);
+                if (Files.notExists(localeMessages))
+                    Files.copy(Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream(name)), localeMessages);
+            }
+
+            // Messages added in newer versions still resolve when an older messages.yml is kept
+            ConfigurationNode defaults = YAMLConfigurationLoader.builder()
+                    .setURL(Objects.requireNonNull(this.getClass().getClassLoader().getResource("messages.yml")))
+                    .build()
+                    .load();
             YAMLConfigurationLoader loader = YAMLConfigurationLoader.builder().setPath(messages).build();
             ConfigurationNode root = loader.load();
-            Messaging.init(root);
+            Messaging.init(defaults, root, this::loadLocaleMessages, LOADER);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void loadPacks(ResourcePackFactory factory) {
-        PackCache packCache = PackCache.getInstance();
-        packCache.reset();
+    /**
+     * Loads messages_&lt;locale&gt;.yml, called on the loader pool the first time a player with that locale is
+     * messaged.
+     *
+     * @return the messages, or null if the locale has no file or it cannot be read
+     */
+    private ConfigurationNode loadLocaleMessages(String locale) {
+        Path messages = dataDirectory.resolve("messages_" + locale + ".yml");
+        if (Files.notExists(messages))
+            return null;
 
-        List<ConfigurationNode> roots = getPackConfigurations(packsDirectory.toFile().listFiles());
-        Collection<AbstractResourcePack> packs = new LinkedList<>();
-        roots.forEach(root -> packs.add(factory.create(root)));
+        try {
+            return YAMLConfigurationLoader.builder().setPath(messages).build().load();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to load " + messages.getFileName() + ": " + e.getMessage());
+            return null;
+        }
+    }
 
-        packCache.addAll(packs);
+    /**
+     * Parses every pack definition in parallel on the loader pool and publishes the result as the new
+     * catalog. A file that fails to load is reported and keeps the pack it last loaded, if any, instead of
+     * aborting the whole load.
+     */
+    public CompletableFuture<PackLoadReport> loadPacksAsync(ResourcePackFactory factory) {
+        long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(this::getPackFiles, LOADER)
+                .thenCompose(files -> parse(factory, files))
+                .thenApply(results -> {
+                    PackDefinitionCache cache = getDefinitionCache();
+                    cache.retain(results.keySet().stream().map(file -> file.getFileName().toString()).collect(Collectors.toSet()));
+                    cache.save();
+
+                    Map<Path, AbstractResourcePack> packs = new HashMap<>(results.size());
+                    Map<Path, String> failures = new HashMap<>();
+                    synchronized (PUBLISH_LOCK) {
+                        PackCache packCache = PackCache.getInstance();
+                        PackCatalog previous = packCache.getCatalog();
+                        results.forEach((file, result) -> {
+                            if (result.pack != null) {
+                                packs.put(file, result.pack);
+                                return;
+                            }
+
+                            failures.put(file, result.error);
+                            AbstractResourcePack lastLoaded = previous.getSources().get(file);
+                            if (lastLoaded != null)
+                                packs.put(file, lastLoaded);
+                        });
+
+                        // Build the whole catalog before publishing so readers never observe a partial reload
+                        PackCatalog catalog = new PackCatalog(packs, previous);
+                        packCache.publish(catalog);
+                        return report(CatalogDiff.between(previous, catalog), results, failures, start);
+                    }
+                });
     }
 
-    @NotNull
-    private static List<ConfigurationNode> getPackConfigurations(File[] files) {
-        List<File> fileList = new ArrayList<>(List.of(files));
-        for (Iterator<File> i = fileList.iterator(); i.hasNext(); ) {
-            File file = i.next();
-            String fileName = file.getName();
-            String extension = "";
-            int j = fileName.lastIndexOf('.');
-            if (j > 0)
-                extension = fileName.substring(j + 1);
-
-            if (!extension.equals("pack"))
-                i.remove();
+    /**
+     * Re-reads only the given definition files in parallel and publishes the current catalog with those
+     * packs replaced. Files that no longer exist have their pack removed, files that fail to load keep
+     * their previous pack.
+     */
+    public CompletableFuture<PackLoadReport> loadPacksAsync(ResourcePackFactory factory, Collection<Path> changed) {
+        long start = System.nanoTime();
+        List<Path> existing = new ArrayList<>(changed.size());
+        List<Path> deleted = new ArrayList<>();
+        for (Path file : changed) {
+            if (Files.isRegularFile(file) && isPackFile(file))
+                existing.add(file);
+            else
+                deleted.add(file);
         }
 
-        List<ConfigurationNode> packList = new LinkedList<>();
-        fileList.forEach(pack -> {
-            try {
-                packList.add(YAMLConfigurationLoader.builder().setFile(pack).build().load());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        return parse(factory, existing).thenApply(results -> {
+            PackDefinitionCache cache = getDefinitionCache();
+            deleted.forEach(file -> cache.remove(file.getFileName().toString()));
+            cache.save();
+
+            Map<Path, AbstractResourcePack> updated = new HashMap<>(results.size());
+            Map<Path, String> failures = new HashMap<>();
+            results.forEach((file, result) -> {
+                if (result.pack != null)
+                    updated.put(file, result.pack);
+                else
+                    failures.put(file, result.error);
+            });
+
+            synchronized (PUBLISH_LOCK) {
+                PackCache packCache = PackCache.getInstance();
+                PackCatalog previous = packCache.getCatalog();
+                PackCatalog catalog = previous.withChanges(updated, deleted);
+                packCache.publish(catalog);
+                return report(CatalogDiff.between(previous, catalog), results, failures, start);
             }
         });
+    }
+
+    private CompletableFuture<Map<Path, ParseResult>> parse(ResourcePackFactory factory, List<Path> files) {
+        PackDefinitionCache cache = getDefinitionCache();
+        Map<Path, CompletableFuture<ParseResult>> futures = new HashMap<>(files.size());
+        for (Path file : files)
+            futures.put(file, CompletableFuture.supplyAsync(() -> parse(factory, cache, file), LOADER));
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            Map<Path, ParseResult> results = new HashMap<>(futures.size());
+            futures.forEach((file, future) -> results.put(file, future.join()));
+            return results;
+        });
+    }
 
-        return packList;
+    /**
+     * Uses the cached definition when the file's size and modification time are unchanged, otherwise
+     * parses the YAML and caches the result.
+     */
+    private static ParseResult parse(ResourcePackFactory factory, PackDefinitionCache cache, Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            String fileName = file.getFileName().toString();
+            long size = attributes.size(), modified = attributes.lastModifiedTime().toMillis();
+
+            PackDefinition definition = cache.get(fileName, size, modified);
+            boolean cached = definition != null;
+            if (!cached) {
+                definition = PackDefinition.fromNode(loadPackConfiguration(file));
+                cache.put(fileName, size, modified, definition);
+            }
+            return new ParseResult(factory.create(definition), cached, null);
+        } catch (IOException | RuntimeException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            return new ParseResult(null, false, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+        }
+    }
+
+    private static PackLoadReport report(CatalogDiff diff, Map<Path, ParseResult> results, Map<Path, String> failures, long start) {
+        int parsed = results.size() - failures.size();
+        long cached = results.values().stream().filter(result -> result.cached).count();
+        PackLoadReport report = new PackLoadReport(diff, parsed, failures, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOGGER.info("Loaded " + parsed + " pack definition(s), " + cached + " from cache, in " + report.getElapsedMillis() + "ms: "
+                + diff.getAdded().size() + " added, " + diff.getRemoved().size() + " removed, " + diff.getChanged().size() + " changed.");
+        failures.forEach((file, error) -> LOGGER.warning("Failed to load " + file.getFileName() + ": " + error));
+
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        Config.get().getBundles().forEach((bundle, packs) -> packs.stream()
+                .filter(name -> catalog.getByName(name) == null)
+                .forEach(name -> LOGGER.warning("Bundle " + bundle + " lists unknown pack " + name)));
+        return report;
+    }
+
+    private static final class ParseResult {
+        private final AbstractResourcePack pack;
+        private final boolean cached;
+        private final String error;
+
+        private ParseResult(AbstractResourcePack pack, boolean cached, String error) {
+            this.pack = pack;
+            this.cached = cached;
+            this.error = error;
+        }
+    }
+
+    private PackDefinitionCache getDefinitionCache() {
+        return PackDefinitionCache.get(dataDirectory.resolve("packs.cache"));
+    }
+
+    public Path getPacksDirectory() {
+        return packsDirectory;
+    }
+
+    static boolean isPackFile(Path file) {
+        String fileName = file.getFileName().toString();
+        int j = fileName.lastIndexOf('.');
+        return j > 0 && fileName.substring(j + 1).equals("pack");
+    }
+
+    @NotNull
+    private List<Path> getPackFiles() {
+        File[] files = packsDirectory.toFile().listFiles();
+        if (files == null)
+            return List.of();
+
+        List<Path> packFiles = new ArrayList<>(files.length);
+        for (File file : files) {
+            Path path = file.toPath();
+            if (isPackFile(path))
+                packFiles.add(path);
+        }
+        return packFiles;
+    }
+
+    @NotNull
+    private static ConfigurationNode loadPackConfiguration(Path file) {
+        try {
+            return YAMLConfigurationLoader.builder().setPath(file).build().load();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.Style;
+import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
+
+import java.util.ArrayList;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A legacy formatted message compiled once at load time. Sending it without arguments returns a
+ * constant Component, and sending it with arguments only drops the arguments into pre-styled slots.
+ * Messages using format specifiers other than {@code %s}, {@code %n$s}, {@code %%} and {@code %n} fall
+ * back to {@link String#format} on every send.
+ */
+final class MessageTemplate {
+    private static final Logger LOGGER = Logger.getLogger("PackStacker");
+    // Private use code points stand in for argument slots while the legacy codes are parsed
+    private static final char SLOT_BASE = '\uE000';
+    private static final int MAX_SLOTS = 256;
+
+    private final String source;
+    private final Component constant;
+    // Literal parts are prebuilt Components, slots are styles applied to the argument at that index
+    private final Component[] literals;
+    private final Style[] slotStyles;
+    private final int[] slotArgs;
+    private final int arity;
+    private final boolean compiled;
+
+    private MessageTemplate(String source, Component constant, Component[] literals, Style[] slotStyles, int[] slotArgs, int arity, boolean compiled) {
+        this.source = source;
+        this.constant = constant;
+        this.literals = literals;
+        this.slotStyles = slotStyles;
+        this.slotArgs = slotArgs;
+        this.arity = arity;
+        this.compiled = compiled;
+    }
+
+    static MessageTemplate compile(String source) {
+        LegacyComponentSerializer serializer = LegacyComponentSerializer.legacySection();
+        Component constant = serializer.deserialize(source);
+
+        String marked = markSlots(source);
+        if (marked == null)
+            return new MessageTemplate(source, constant, null, null, null, 0, false);
+
+        List<Component> literals = new ArrayList<>();
+        List<Style> slotStyles = new ArrayList<>();
+        List<Integer> slotArgs = new ArrayList<>();
+        flatten(serializer.deserialize(marked), Style.empty(), literals, slotStyles, slotArgs);
+
+        int arity = slotArgs.stream().mapToInt(arg -> arg + 1).max().orElse(0);
+        return new MessageTemplate(source, constant, literals.toArray(new Component[0]), slotStyles.toArray(new Style[0]),
+                slotArgs.stream().mapToInt(Integer::intValue).toArray(), arity, true);
+    }
+
+    /**
+     * Rewrites supported format specifiers into slot markers.
+     *
+     * @return the marked string, or null if the message uses specifiers that must go through String.format
+     */
+    private static String markSlots(String source) {
+        StringBuilder marked = new StringBuilder(source.length());
+        int next = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c >= SLOT_BASE && c < SLOT_BASE + MAX_SLOTS)
+                return null;
+
+            if (c != '%') {
+                marked.append(c);
+                continue;
+            }
+
+            if (i + 1 >= source.length())
+                return null;
+
+            char spec = source.charAt(++i);
+            if (spec == 's') {
+                marked.append((char) (SLOT_BASE + next++));
+            } else if (spec == '%') {
+                marked.append('%');
+            } else if (spec == 'n') {
+                marked.append('\n');
+            } else {
+                // Explicit index such as %2$s
+                int end = source.indexOf("$s", i);
+                if (end < 0)
+                    return null;
+                try {
+                    int index = Integer.parseInt(source.substring(i, end)) - 1;
+                    if (index < 0 || index >= MAX_SLOTS)
+                        return null;
+                    marked.append((char) (SLOT_BASE + index));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                i = end + 1;
+            }
+
+            if (next > MAX_SLOTS)
+                return null;
+        }
+        return marked.toString();
+    }
+
+    private static void flatten(Component component, Style parent, List<Component> literals, List<Style> slotStyles, List<Integer> slotArgs) {
+        Style style = component.style().merge(parent, Style.Merge.Strategy.IF_ABSENT_ON_TARGET);
+
+        if (component instanceof TextComponent text) {
+            String content = text.content();
+            int start = 0;
+            for (int i = 0; i < content.length(); i++) {
+                char c = content.charAt(i);
+                if (c < SLOT_BASE || c >= SLOT_BASE + MAX_SLOTS)
+                    continue;
+
+                if (i > start) {
+                    literals.add(Component.text(content.substring(start, i), style));
+                    slotArgs.add(-1);
+                    slotStyles.add(null);
+                }
+                literals.add(null);
+                slotArgs.add(c - SLOT_BASE);
+                slotStyles.add(style);
+                start = i + 1;
+            }
+
+            if (start < content.length()) {
+                literals.add(Component.text(content.substring(start), style));
+                slotArgs.add(-1);
+                slotStyles.add(null);
+            }
+        }
+
+        for (Component child : component.children())
+            flatten(child, style, literals, slotStyles, slotArgs);
+    }
+
+    String source() {
+        return source;
+    }
+
+    Component render() {
+        return constant;
+    }
+
+    TextComponent render(Object... args) {
+        if (!compiled || args.length < arity)
+            return LegacyComponentSerializer.legacySection().deserialize(format(args));
+
+        TextComponent.Builder builder = Component.text();
+        for (int i = 0; i < slotArgs.length; i++) {
+            int arg = slotArgs[i];
+            builder.append(arg < 0 ? literals[i] : Component.text(String.valueOf(args[arg]), slotStyles[i]));
+        }
+        return builder.build();
+    }
+
+    String format(Object... args) {
+        try {
+            return String.format(source, args);
+        } catch (IllegalFormatException e) {
+            LOGGER.log(Level.WARNING, "Could not format message '" + source + "'", e);
+            return source;
+        }
+    }
+}
@@ -19,61 +19,183 @@
 package com.timomcgrath.packstacker;
 
 import net.kyori.adventure.audience.Audience;
+import net.kyori.adventure.identity.Identity;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.TextComponent;
-import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
 import ninja.leaping.configurate.ConfigurationNode;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
-import java.util.IllegalFormatException;
-import java.util.Objects;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
+/**
+ * Message catalogs compiled into {@link MessageTemplate}s. The default catalog comes from messages.yml,
+ * and locale catalogs from messages_&lt;locale&gt;.yml. A locale file is only read once a player with that
+ * client locale is messaged, on the loader passed to init so sending never waits for the disk. Until it
+ * is compiled such players get the closest catalog already loaded. Keys missing from a locale file fall
+ * back to the language file, then to the default catalog.
+ */
 public class Messaging {
-    private static final HashMap<String, String> messages = new HashMap<>();
     private static final String MESSAGE_NOT_FOUND = "Message does not exist or is not configured.";
+    private static final MessageTemplate NOT_FOUND_TEMPLATE = MessageTemplate.compile(MESSAGE_NOT_FOUND);
+    // Client locales are player controlled, only well formed tags are ever turned into file names
+    private static final Pattern LOCALE_TAG = Pattern.compile("[a-z]{2,8}(_[a-z0-9]{2,8})?");
+
+    // Replaced wholesale on init so senders never observe a half loaded table
+    private static volatile Catalogs catalogs = new Catalogs(Map.of(), tag -> null, Runnable::run);
 
     public static void init(ConfigurationNode root) {
-        reset();
-        root.getChildrenMap().forEach((object, configurationNode) -> {
-            String name = object.toString();
-            String message = configurationNode.getString();
-            messages.put(name, message);
-        });
+        init(null, root, tag -> null, Runnable::run);
+    }
+
+    /**
+     * @param defaults      the bundled messages used for keys missing from root, may be null
+     * @param root          the configured default messages
+     * @param localeLoader  loads the messages for a locale tag such as "vi_vn", returning null if there are none
+     * @param loader        runs the locale loader, off the thread sending the message
+     */
+    public static void init(@Nullable ConfigurationNode defaults, ConfigurationNode root, Function<String, ConfigurationNode> localeLoader,
+                            Executor loader) {
+        Map<String, MessageTemplate> compiled = defaults == null ? Map.of() : overlay(Map.of(), defaults);
+        catalogs = new Catalogs(overlay(compiled, root), localeLoader, loader);
     }
 
     public static void sendMsg(Audience audience, String key) {
-        audience.sendMessage(get(key));
+        audience.sendMessage(get(audience, key));
     }
 
     public static void sendMsg(Audience audience, String key, Object... args) {
-        audience.sendMessage(get(key, args));
+        audience.sendMessage(get(audience, key, args));
     }
 
     public static Component get(String key) {
-        return LegacyComponentSerializer.legacySection().deserialize(getStr(key));
+        return template(catalogs.defaults, key).render();
     }
 
     public static TextComponent get(String key, Object... args) {
-        return LegacyComponentSerializer.legacySection().deserialize(getStr(key, args));
+        return template(catalogs.defaults, key).render(args);
+    }
+
+    public static Component get(Audience audience, String key) {
+        return template(catalogFor(audience), key).render();
+    }
+
+    public static TextComponent get(Audience audience, String key, Object... args) {
+        return template(catalogFor(audience), key).render(args);
     }
 
     public static String getStr(String key) {
-        String msg = messages.get(key);
-        return Objects.isNull(msg) ? MESSAGE_NOT_FOUND : msg;
+        return template(catalogs.defaults, key).source();
     }
 
     public static String getStr(String key, Object... args) {
-        String str = getStr(key);
+        return template(catalogs.defaults, key).format(args);
+    }
 
-        try {
-            return String.format(str, args);
-        } catch (IllegalFormatException e) {
-            // TODO: Log exception
-            return str;
-        }
+    public static String getStr(Audience audience, String key) {
+        return template(catalogFor(audience), key).source();
     }
 
     public static void reset() {
-        messages.clear();
+        catalogs = new Catalogs(Map.of(), tag -> null, Runnable::run);
+    }
+
+    private static MessageTemplate template(Map<String, MessageTemplate> catalog, String key) {
+        MessageTemplate template = catalog.get(key);
+        return template == null ? NOT_FOUND_TEMPLATE : template;
+    }
+
+    private static Map<String, MessageTemplate> catalogFor(Audience audience) {
+        Catalogs current = catalogs;
+        Locale locale = audience.get(Identity.LOCALE).orElse(null);
+        if (locale == null || locale.getLanguage().isEmpty())
+            return current.defaults;
+
+        String language = locale.getLanguage().toLowerCase(Locale.ROOT);
+        String country = locale.getCountry().toLowerCase(Locale.ROOT);
+        return current.get(language, country);
+    }
+
+    /**
+     * Compiles the messages in node on top of base. Templates that are not overridden are shared with base.
+     *
+     * @return base itself if node has no messages
+     */
+    private static Map<String, MessageTemplate> overlay(Map<String, MessageTemplate> base, @Nullable ConfigurationNode node) {
+        if (node == null || node.getChildrenMap().isEmpty())
+            return base;
+
+        Map<String, MessageTemplate> compiled = new HashMap<>(base);
+        node.getChildrenMap().forEach((object, configurationNode) -> {
+            String name = object.toString();
+            String message = configurationNode.getString();
+            if (message != null)
+                compiled.put(name, MessageTemplate.compile(message));
+        });
+        return Map.copyOf(compiled);
+    }
+
+    private static final class Catalogs {
+        private final Map<String, MessageTemplate> defaults;
+        private final Function<String, ConfigurationNode> localeLoader;
+        private final Executor loader;
+        // Only locales that have actually been messaged are compiled, locales without a file map to their fallback
+        private final Map<String, Map<String, MessageTemplate>> locales = new ConcurrentHashMap<>();
+        // Locales whose file was handed to the loader
+        private final Set<String> loading = ConcurrentHashMap.newKeySet();
+
+        private Catalogs(Map<String, MessageTemplate> defaults, Function<String, ConfigurationNode> localeLoader, Executor loader) {
+            this.defaults = defaults;
+            this.localeLoader = localeLoader;
+            this.loader = loader;
+        }
+
+        /**
+         * @return the locale's catalog, or while it is still loading the language or default catalog
+         */
+        private Map<String, MessageTemplate> get(String language, String country) {
+            String tag = country.isEmpty() ? language : language + "_" + country;
+            Map<String, MessageTemplate> catalog = locales.get(tag);
+            if (catalog != null)
+                return catalog;
+
+            if (!LOCALE_TAG.matcher(tag).matches())
+                return defaults;
+
+            if (loading.add(tag)) {
+                try {
+                    loader.execute(() -> load(language, country));
+                } catch (RejectedExecutionException e) {
+                    // The plugin is shutting down
+                    return defaults;
+                }
+                catalog = locales.get(tag);
+                if (catalog != null)
+                    return catalog;
+            }
+
+            catalog = country.isEmpty() ? null : locales.get(language);
+            return catalog == null ? defaults : catalog;
+        }
+
+        // Runs on the loader. A country file is compiled on top of its language file, which is read first.
+        private Map<String, MessageTemplate> load(String language, String country) {
+            String tag = country.isEmpty() ? language : language + "_" + country;
+            Map<String, MessageTemplate> catalog = locales.get(tag);
+            if (catalog != null)
+                return catalog;
+
+            Map<String, MessageTemplate> base = country.isEmpty() ? defaults : load(language, "");
+            catalog = overlay(base, localeLoader.apply(tag));
+            Map<String, MessageTemplate> raced = locales.putIfAbsent(tag, catalog);
+            return raced == null ? catalog : raced;
+        }
     }
 }
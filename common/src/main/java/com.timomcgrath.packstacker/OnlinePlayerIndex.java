@@ -0,0 +1,106 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * Lowercase names of every online player, kept sorted so prefix lookups only touch the matching range.
+ * Join and quit listeners keep it current, and {@link #sweep(Predicate)} drops names left behind by a
+ * missed quit event. Lookups return views of an immutable snapshot that is rebuilt on join and quit, so
+ * completing a name on every keystroke copies nothing.
+ */
+public class OnlinePlayerIndex {
+    private static final OnlinePlayerIndex instance = new OnlinePlayerIndex();
+    private final ConcurrentSkipListMap<String, UUID> names = new ConcurrentSkipListMap<>();
+    // Sorted copy of the keys of names, replaced after every change
+    private volatile List<String> snapshot = List.of();
+
+    private OnlinePlayerIndex() {}
+
+    public void add(UUID uuid, String name) {
+        names.put(name.toLowerCase(Locale.ROOT), uuid);
+        refresh();
+    }
+
+    public void remove(UUID uuid, String name) {
+        // A player who rejoined under the same name keeps their entry
+        if (names.remove(name.toLowerCase(Locale.ROOT), uuid))
+            refresh();
+    }
+
+    private synchronized void refresh() {
+        snapshot = List.copyOf(names.keySet());
+    }
+
+    /**
+     * @return the lowercase names of online players, in alphabetical order. The list is immutable.
+     */
+    public List<String> getNames() {
+        return snapshot;
+    }
+
+    /**
+     * @param prefix the prefix to match, case insensitive
+     * @return the lowercase names starting with the prefix, in alphabetical order. The list is immutable.
+     */
+    public List<String> getNamesStartingWith(String prefix) {
+        List<String> current = snapshot;
+        if (prefix == null || prefix.isEmpty())
+            return current;
+
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        return current.subList(insertionPoint(current, lower), insertionPoint(current, lower + Character.MAX_VALUE));
+    }
+
+    private static int insertionPoint(List<String> sorted, String key) {
+        int index = Collections.binarySearch(sorted, key);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    /**
+     * Removes every name whose player is no longer online.
+     *
+     * @return the number of removed names
+     */
+    public int sweep(Predicate<UUID> isOnline) {
+        int removed = 0;
+        for (Map.Entry<String, UUID> entry : names.entrySet()) {
+            if (!isOnline.test(entry.getValue()) && names.remove(entry.getKey(), entry.getValue()))
+                removed++;
+        }
+        if (removed > 0)
+            refresh();
+        return removed;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public static OnlinePlayerIndex getInstance() {
+        return instance;
+    }
+}
@@ -18,53 +18,84 @@
 
 package com.timomcgrath.packstacker;
 
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Holds the currently published {@link PackCatalog}. Readers never lock; a reload builds a new
+ * catalog and swaps it in with {@link #publish(PackCatalog)}.
+ */
 public class PackCache {
-    private static PackCache instance;
-    private final Map<UUID, AbstractResourcePack> packMap;
-    private final Map<String, UUID> packNameMap;
-    private final Map<String, UUID> packHashMap;
-
-    protected PackCache() {
-        this.packMap = new HashMap<>();
-        this.packNameMap = new HashMap<>();
-        this.packHashMap = new HashMap<>();
+    private static final PackCache instance = new PackCache();
+    private final AtomicReference<PackCatalog> catalog;
+
+    private PackCache() {
+        this.catalog = new AtomicReference<>(PackCatalog.EMPTY);
     }
 
     public static PackCache getInstance() {
-        if (instance == null)
-            instance = new PackCache();
         return instance;
     }
 
+    public PackCatalog getCatalog() {
+        return catalog.get();
+    }
+
+    /**
+     * Atomically replaces the current catalog.
+     *
+     * @param next the fully built catalog to publish
+     * @return the catalog that was replaced
+     */
+    public PackCatalog publish(PackCatalog next) {
+        return catalog.getAndSet(Objects.requireNonNull(next));
+    }
+
+    /**
+     * @deprecated packs are published as a whole {@link PackCatalog}, reload the packs instead
+     */
+    @Deprecated
     public void reset() {
-        packMap.clear();
-        packNameMap.clear();
-        packHashMap.clear();
+        // Keeps the previous ordinals so players' pack state still lines up with re-added packs
+        catalog.updateAndGet(current -> new PackCatalog(Map.of(), current));
     }
 
+    /**
+     * Publishes the current catalog with the pack added. The pack is dropped again by the next full reload.
+     *
+     * @deprecated packs are published as a whole {@link PackCatalog}, add a .pack file and reload instead
+     */
+    @Deprecated
     public void add(AbstractResourcePack pack) {
-        UUID uuid = pack.getUuid();
-        packMap.put(uuid, pack);
-        packNameMap.put(pack.getName().toLowerCase(), uuid);
-        packHashMap.put(pack.getHash(), uuid);
+        addAll(List.of(pack));
     }
 
+    /**
+     * @deprecated see {@link #add(AbstractResourcePack)}
+     */
+    @Deprecated
     public void addAll(Collection<AbstractResourcePack> packs) {
-        packs.forEach(this::add);
+        Map<Path, AbstractResourcePack> added = new HashMap<>();
+        for (AbstractResourcePack pack : packs)
+            added.put(Path.of(pack.getName().toLowerCase(Locale.ROOT)), pack);
+        catalog.updateAndGet(current -> current.withChanges(added, List.of()));
     }
 
     public Collection<AbstractResourcePack> getAll() {
-        return packMap.values();
+        return getCatalog().getPacks();
     }
 
     public List<String> getPackNames() {
-        return packNameMap.keySet().stream().toList();
+        return getCatalog().getPackNames();
+    }
+
+    public List<String> getPackNamesStartingWith(String prefix) {
+        return getCatalog().getPackNamesStartingWith(prefix);
     }
 
     public AbstractResourcePack get(UUID uuid) {
-        return packMap.get(uuid);
+        return getCatalog().get(uuid);
     }
 
     /**
@@ -73,10 +104,10 @@ public class PackCache {
      * @return
      */
     public AbstractResourcePack get(byte[] hash) {
-        return get(packHashMap.get(HexFormat.of().formatHex(hash)));
+        return getCatalog().getByHash(hash);
     }
 
     public AbstractResourcePack get(String name) {
-        return get(packNameMap.get(name));
+        return getCatalog().getByName(name);
     }
 }
@@ -0,0 +1,247 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * An immutable snapshot of every loaded resource pack and its lookup indexes.
+ * Catalogs are built off to the side during a reload and published through {@link PackCache}.
+ */
+public final class PackCatalog {
+    static final PackCatalog EMPTY = new PackCatalog(Map.of(), null);
+
+    private final Map<Path, AbstractResourcePack> sources;
+    private final List<AbstractResourcePack> packs;
+    private final AbstractResourcePack[] ordinalTable;
+    private final Map<String, Integer> ordinals;
+    private final Map<UUID, AbstractResourcePack> packMap;
+    private final Map<String, AbstractResourcePack> packNameMap;
+    private final PackHashIndex hashIndex;
+    // Sorted lowercase names, completion answers with a subList view so no list is built per keystroke
+    private final String[] sortedNames;
+    private final List<String> packNames;
+    private final PackPlan joinPlan, deferredPlan;
+    private final Map<String, PackPlan> bundles;
+    // Keyed by lowercase world name
+    private final Map<String, PackPlan> worldPlans;
+
+    /**
+     * Builds a catalog and assigns every pack its ordinal. A pack keeps the ordinal its name had in the
+     * previous catalog, so player state indexed by ordinal stays valid across reloads. New names take
+     * the next free ordinal and ordinals of removed packs are never handed out again, so ordinals grow with
+     * the number of distinct pack names loaded since startup, not with reloads. Per player pack state costs
+     * one bit per ordinal, a restart compacts them.
+     *
+     * @param sources the packs to index, keyed by the definition file they were loaded from
+     * @param previous the catalog being replaced, or null on first load
+     */
+    public PackCatalog(Map<Path, ? extends AbstractResourcePack> sources, PackCatalog previous) {
+        Map<String, Integer> ordinals = previous == null ? new HashMap<>() : new HashMap<>(previous.ordinals);
+        Map<UUID, AbstractResourcePack> packMap = new HashMap<>();
+        Map<String, AbstractResourcePack> packNameMap = new HashMap<>();
+        List<AbstractResourcePack> joinPacks = new ArrayList<>(), deferredPacks = new ArrayList<>();
+        Map<String, List<AbstractResourcePack>> worldPacks = new HashMap<>();
+
+        for (AbstractResourcePack pack : sources.values()) {
+            String name = pack.getName().toLowerCase(Locale.ROOT);
+            pack.setOrdinal(ordinals.computeIfAbsent(name, key -> ordinals.size()));
+            packMap.put(pack.getUuid(), pack);
+            packNameMap.put(name, pack);
+
+            if (pack.getPhase() == PackPhase.JOIN)
+                joinPacks.add(pack);
+            else if (pack.getPhase() == PackPhase.DEFERRED)
+                deferredPacks.add(pack);
+
+            for (String world : pack.getWorlds())
+                worldPacks.computeIfAbsent(world, key -> new ArrayList<>()).add(pack);
+        }
+
+        AbstractResourcePack[] ordinalTable = new AbstractResourcePack[ordinals.size()];
+        packNameMap.values().forEach(pack -> ordinalTable[pack.getOrdinal()] = pack);
+
+        this.sources = Map.copyOf(sources);
+        this.ordinalTable = ordinalTable;
+        this.ordinals = Map.copyOf(ordinals);
+        this.packs = List.copyOf(packMap.values());
+        this.packMap = Map.copyOf(packMap);
+        this.packNameMap = Map.copyOf(packNameMap);
+        this.hashIndex = new PackHashIndex(this.packs);
+        this.sortedNames = packNameMap.keySet().toArray(new String[0]);
+        Arrays.sort(this.sortedNames);
+        this.packNames = List.of(this.sortedNames);
+        this.joinPlan = PackPlan.of(joinPacks);
+        this.deferredPlan = PackPlan.of(deferredPacks);
+        this.bundles = buildBundles(this.packNameMap);
+        Map<String, PackPlan> worldPlans = new HashMap<>();
+        worldPacks.forEach((world, packs) -> worldPlans.put(world, PackPlan.of(packs)));
+        this.worldPlans = Map.copyOf(worldPlans);
+    }
+
+    /**
+     * Compiles the bundles from config.yml against this catalog's packs. Names of missing packs are skipped.
+     */
+    private static Map<String, PackPlan> buildBundles(Map<String, AbstractResourcePack> packNameMap) {
+        Map<String, PackPlan> bundles = new HashMap<>();
+        Config.get().getBundles().forEach((name, packNames) -> {
+            List<AbstractResourcePack> packs = new ArrayList<>(packNames.size());
+            for (String packName : packNames) {
+                AbstractResourcePack pack = packNameMap.get(packName);
+                if (pack != null && !packs.contains(pack))
+                    packs.add(pack);
+            }
+            if (!packs.isEmpty())
+                bundles.put(name, PackPlan.of(packs));
+        });
+        return Map.copyOf(bundles);
+    }
+
+    /**
+     * Builds the catalog that results from re-reading some definition files, reusing every other pack.
+     *
+     * @param updated packs parsed from files that were created or modified
+     * @param deleted definition files that no longer exist
+     */
+    public PackCatalog withChanges(Map<Path, ? extends AbstractResourcePack> updated, Collection<Path> deleted) {
+        Map<Path, AbstractResourcePack> next = new HashMap<>(sources);
+        deleted.forEach(next::remove);
+        next.putAll(updated);
+        return new PackCatalog(next, this);
+    }
+
+    /**
+     * @return every pack keyed by the definition file it was loaded from.
+     */
+    public Map<Path, AbstractResourcePack> getSources() {
+        return sources;
+    }
+
+    public List<AbstractResourcePack> getPacks() {
+        return packs;
+    }
+
+    /**
+     * @return every lowercase pack name in alphabetical order.
+     */
+    public List<String> getPackNames() {
+        return packNames;
+    }
+
+    /**
+     * Finds the pack names starting with a prefix by binary searching the sorted names.
+     *
+     * @param prefix the prefix to match, case insensitive
+     * @return an immutable view of the matching names in alphabetical order
+     */
+    public List<String> getPackNamesStartingWith(String prefix) {
+        if (prefix == null || prefix.isEmpty())
+            return packNames;
+
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        int from = insertionPoint(lower);
+        int to = insertionPoint(lower + Character.MAX_VALUE);
+        return packNames.subList(from, to);
+    }
+
+    private int insertionPoint(String key) {
+        int index = Arrays.binarySearch(sortedNames, key);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    /**
+     * @return every pack in the {@link PackPhase#JOIN} phase, in priority order.
+     */
+    public List<AbstractResourcePack> getJoinPacks() {
+        return joinPlan.getPacks();
+    }
+
+    /**
+     * @return the packs sent on join, sorted and ready to send once per catalog.
+     */
+    public PackPlan getJoinPlan() {
+        return joinPlan;
+    }
+
+    /**
+     * @return the {@link PackPhase#DEFERRED} packs, sent once a player settled in, see {@link DeferredDelivery}.
+     */
+    public PackPlan getDeferredPlan() {
+        return deferredPlan;
+    }
+
+    /**
+     * @param world the world name, case insensitive
+     * @return the packs bound to the world through their worlds option, sorted once per catalog
+     */
+    public PackPlan getWorldPlan(String world) {
+        return world == null ? PackPlan.EMPTY : worldPlans.getOrDefault(world.toLowerCase(Locale.ROOT), PackPlan.EMPTY);
+    }
+
+    /**
+     * @param name the lowercase bundle name
+     * @return the bundle declared in config.yml, or null if there is none or none of its packs are loaded
+     */
+    public PackPlan getBundle(String name) {
+        return name == null ? null : bundles.get(name);
+    }
+
+    /**
+     * @return the pack assigned to the ordinal, or null if no pack in this catalog holds it.
+     */
+    public AbstractResourcePack get(int ordinal) {
+        return ordinal < 0 || ordinal >= ordinalTable.length ? null : ordinalTable[ordinal];
+    }
+
+    /**
+     * @return one past the highest ordinal ever assigned.
+     */
+    public int getOrdinalBound() {
+        return ordinalTable.length;
+    }
+
+    public AbstractResourcePack get(UUID uuid) {
+        return uuid == null ? null : packMap.get(uuid);
+    }
+
+    /**
+     * @param name the lowercase pack name
+     */
+    public AbstractResourcePack getByName(String name) {
+        return name == null ? null : packNameMap.get(name);
+    }
+
+    /**
+     * Resolves a pack from the raw SHA-1 bytes a client reports. Does not allocate.
+     *
+     * @param hash the 20 byte SHA-1 hash
+     */
+    public AbstractResourcePack getByHash(byte[] hash) {
+        return hashIndex.get(hash);
+    }
+
+    public boolean isEmpty() {
+        return packs.isEmpty();
+    }
+
+    public int size() {
+        return packs.size();
+    }
+}
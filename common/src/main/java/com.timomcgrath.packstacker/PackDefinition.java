@@ -0,0 +1,205 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import ninja.leaping.configurate.ConfigurationNode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The settings of one .pack file, parsed but not yet turned into a platform resource pack.
+ */
+public final class PackDefinition {
+    private final String name, hash, url, prompt;
+    private final byte priority;
+    private final boolean isRequired, loadOnJoin;
+    private final PackPhase phase;
+    private final long size;
+    private final List<String> worlds;
+
+    /**
+     * @param loadOnJoin the load_on_join option as configured, the phase decides when the pack is sent
+     * @param size the download size in bytes, or 0 if unknown
+     * @param worlds the lowercase names of the worlds this pack is loaded in, empty if it is not bound to a world
+     */
+    public PackDefinition(String name, String hash, String url, String prompt, byte priority, boolean isRequired, boolean loadOnJoin,
+                          PackPhase phase, long size, List<String> worlds) {
+        this.name = name;
+        this.hash = hash;
+        this.url = url;
+        this.prompt = prompt;
+        this.priority = priority;
+        this.isRequired = isRequired;
+        this.loadOnJoin = loadOnJoin;
+        this.phase = phase;
+        this.size = size;
+        this.worlds = List.copyOf(worlds);
+    }
+
+    public static PackDefinition fromNode(ConfigurationNode root) {
+        boolean isRequired = root.getNode("required").getBoolean(false);
+        boolean loadOnJoin = root.getNode("load_on_join").getBoolean(false);
+        return new PackDefinition(
+                require(root, "name"),
+                require(root, "hash"),
+                require(root, "url"),
+                root.getNode("prompt").getString(),
+                (byte) root.getNode("priority").getInt(0),
+                isRequired,
+                loadOnJoin,
+                PackPhase.parse(root.getNode("phase").getString(), isRequired || loadOnJoin),
+                parseSize(root.getNode("size").getString()),
+                parseWorlds(root.getNode("worlds")));
+    }
+
+    private static List<String> parseWorlds(ConfigurationNode node) {
+        List<String> worlds = new ArrayList<>();
+        if (node.isList()) {
+            for (ConfigurationNode world : node.getChildrenList()) {
+                String name = world.getString();
+                if (name != null && !name.isBlank() && !worlds.contains(name.toLowerCase(Locale.ROOT)))
+                    worlds.add(name.toLowerCase(Locale.ROOT));
+            }
+        } else if (node.getString() != null && !node.getString().isBlank()) {
+            worlds.add(node.getString().toLowerCase(Locale.ROOT));
+        }
+        return worlds;
+    }
+
+    /**
+     * Parses a size in bytes, optionally suffixed with K, M or G (powers of 1024).
+     */
+    static long parseSize(String size) {
+        if (size == null || size.isBlank())
+            return 0;
+
+        String value = size.trim().toUpperCase(Locale.ROOT);
+        if (value.endsWith("B"))
+            value = value.substring(0, value.length() - 1);
+
+        long unit = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'K' -> 1L << 10;
+            case 'M' -> 1L << 20;
+            case 'G' -> 1L << 30;
+            default -> 1;
+        };
+        if (unit != 1)
+            value = value.substring(0, value.length() - 1).trim();
+
+        try {
+            return Math.max(0, (long) (Double.parseDouble(value) * unit));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size '" + size + "'");
+        }
+    }
+
+    private static String require(ConfigurationNode root, String key) {
+        String value = root.getNode(key).getString();
+        if (value == null)
+            throw new IllegalArgumentException("Missing required option '" + key + "'");
+        return value;
+    }
+
+    static PackDefinition read(DataInput in) throws IOException {
+        String name = in.readUTF(), hash = in.readUTF(), url = in.readUTF();
+        String prompt = in.readBoolean() ? in.readUTF() : null;
+        byte priority = in.readByte();
+        boolean isRequired = in.readBoolean(), loadOnJoin = in.readBoolean();
+        int phase = in.readUnsignedByte();
+        if (phase >= PackPhase.values().length)
+            throw new IOException("Unknown pack phase " + phase);
+        long size = in.readLong();
+        int count = in.readUnsignedShort();
+        List<String> worlds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            worlds.add(in.readUTF());
+        return new PackDefinition(name, hash, url, prompt, priority, isRequired, loadOnJoin, PackPhase.values()[phase], size, worlds);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeUTF(hash);
+        out.writeUTF(url);
+        out.writeBoolean(prompt != null);
+        if (prompt != null)
+            out.writeUTF(prompt);
+        out.writeByte(priority);
+        out.writeBoolean(isRequired);
+        out.writeBoolean(loadOnJoin);
+        out.writeByte(phase.ordinal());
+        out.writeLong(size);
+        out.writeShort(worlds.size());
+        for (String world : worlds)
+            out.writeUTF(world);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the MiniMessage source of the prompt, or null if none is configured.
+     */
+    public String getPrompt() {
+        return prompt;
+    }
+
+    public byte getPriority() {
+        return priority;
+    }
+
+    public boolean isRequired() {
+        return isRequired;
+    }
+
+    public boolean loadOnJoin() {
+        return loadOnJoin;
+    }
+
+    public PackPhase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the download size in bytes, or 0 if not configured.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the lowercase names of the worlds this pack is loaded in, empty if it is not bound to a world.
+     */
+    public List<String> getWorlds() {
+        return worlds;
+    }
+}
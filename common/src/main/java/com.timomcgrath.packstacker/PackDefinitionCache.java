@@ -0,0 +1,155 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary cache of parsed pack definitions, keyed by file name and validated against each file's size
+ * and modification time. Unchanged .pack files are read from here instead of being parsed as YAML.
+ */
+final class PackDefinitionCache {
+    private static final Logger LOGGER = Logger.getLogger("PackStacker");
+    private static final int MAGIC = 0x5053_4443;
+    // Bump whenever the PackDefinition wire format changes so stale caches are discarded
+    private static final int FORMAT_VERSION = 5;
+    // One cache per file, shared by every FileLoader so reloads and the watcher never write it concurrently
+    private static final Map<Path, PackDefinitionCache> CACHES = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    private PackDefinitionCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the cache shared by everything loading packs into this file, read on first use.
+     */
+    static PackDefinitionCache get(Path file) {
+        return CACHES.computeIfAbsent(file.toAbsolutePath().normalize(), PackDefinitionCache::load);
+    }
+
+    /**
+     * Reads the cache file, starting empty if it is missing, outdated or unreadable.
+     */
+    private static PackDefinitionCache load(Path file) {
+        PackDefinitionCache cache = new PackDefinitionCache(file);
+        if (Files.notExists(file))
+            return cache;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                return cache;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong(), modified = in.readLong();
+                cache.entries.put(name, new Entry(size, modified, PackDefinition.read(in)));
+            }
+        } catch (IOException e) {
+            cache.entries.clear();
+            LOGGER.log(Level.WARNING, "Discarding unreadable pack cache " + file, e);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the cached definition if the file has not changed since it was cached, otherwise null.
+     */
+    PackDefinition get(String fileName, long size, long modified) {
+        Entry entry = entries.get(fileName);
+        return entry != null && entry.size == size && entry.modified == modified ? entry.definition : null;
+    }
+
+    void put(String fileName, long size, long modified, PackDefinition definition) {
+        entries.put(fileName, new Entry(size, modified, definition));
+        dirty = true;
+    }
+
+    void remove(String fileName) {
+        if (entries.remove(fileName) != null)
+            dirty = true;
+    }
+
+    /**
+     * Drops every entry whose file is not in the given set.
+     */
+    void retain(Set<String> fileNames) {
+        if (entries.keySet().retainAll(fileNames))
+            dirty = true;
+    }
+
+    /**
+     * Writes the cache if it changed since it was loaded. The file is replaced atomically so a crash
+     * mid-write never leaves a truncated cache behind.
+     */
+    synchronized void save() {
+        if (!dirty)
+            return;
+
+        dirty = false;
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                Map<String, Entry> snapshot = Map.copyOf(entries);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().modified);
+                    entry.getValue().definition.write(out);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write pack cache " + file, e);
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final long size, modified;
+        private final PackDefinition definition;
+
+        private Entry(long size, long modified, PackDefinition definition) {
+            this.size = size;
+            this.modified = modified;
+            this.definition = definition;
+        }
+    }
+}
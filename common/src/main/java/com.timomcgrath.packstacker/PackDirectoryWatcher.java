@@ -0,0 +1,138 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the packs directory and applies edits to .pack files as incremental catalog updates.
+ * Bursts of file events are debounced, then only the touched files are parsed again.
+ */
+public final class PackDirectoryWatcher implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger("PackStacker");
+    private static PackDirectoryWatcher instance;
+
+    private final PackPlugin plugin;
+    private final FileLoader fileLoader;
+    private final ResourcePackFactory factory;
+    private final WatchService watchService;
+    private final long debounceMillis;
+    private final Thread thread;
+
+    private PackDirectoryWatcher(PackPlugin plugin, FileLoader fileLoader, ResourcePackFactory factory, long debounceMillis) throws IOException {
+        this.plugin = plugin;
+        this.fileLoader = fileLoader;
+        this.factory = factory;
+        this.debounceMillis = debounceMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        fileLoader.getPacksDirectory().register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+        this.thread = new Thread(this, "PackStacker Pack Watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Stops any running watcher and starts a new one if watching is enabled in the config.
+     */
+    public static synchronized void configure(PackPlugin plugin, FileLoader fileLoader, ResourcePackFactory factory) {
+        shutdown();
+
+        Config config = Config.get();
+        if (!config.isWatchEnabled())
+            return;
+
+        try {
+            instance = new PackDirectoryWatcher(plugin, fileLoader, factory, config.getWatchDebounceMillis());
+            instance.thread.start();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not watch " + fileLoader.getPacksDirectory() + " for changes", e);
+        }
+    }
+
+    public static synchronized void shutdown() {
+        if (instance == null)
+            return;
+
+        try {
+            instance.watchService.close();
+        } catch (IOException ignored) {
+        }
+        instance.thread.interrupt();
+        instance = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new HashSet<>();
+                boolean overflow = collect(watchService.take(), changed);
+
+                // Keep collecting until the directory has been quiet for the debounce window
+                WatchKey key;
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null)
+                    overflow |= collect(key, changed);
+
+                if (overflow || !changed.isEmpty())
+                    apply(changed, overflow);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // Shut down
+        }
+    }
+
+    /**
+     * @return true if events were lost and the directory must be rescanned in full.
+     */
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            Path file = fileLoader.getPacksDirectory().resolve((Path) event.context());
+            if (FileLoader.isPackFile(file))
+                changed.add(file);
+        }
+        key.reset();
+        return overflow;
+    }
+
+    private void apply(Set<Path> changed, boolean overflow) {
+        PackLoadReport report;
+        try {
+            report = (overflow ? fileLoader.loadPacksAsync(factory) : fileLoader.loadPacksAsync(factory, changed)).join();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to reload changed pack definitions " + changed, e);
+            return;
+        }
+
+        plugin.runLater(() -> report.getDiff().dispatch(plugin), 0);
+    }
+}
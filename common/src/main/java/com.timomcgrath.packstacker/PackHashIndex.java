@@ -0,0 +1,92 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Collection;
+
+/**
+ * Open addressing table keyed on raw 20 byte SHA-1 hashes. Each key is packed into two longs and an int
+ * so a lookup straight from a status packet's hash bytes does not allocate.
+ */
+final class PackHashIndex {
+    static final int HASH_LENGTH = 20;
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final long[] high, middle;
+    private final int[] low;
+    private final AbstractResourcePack[] values;
+    private final int mask;
+
+    PackHashIndex(Collection<? extends AbstractResourcePack> packs) {
+        // Keep the load factor at or below one half so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(packs.size(), 1) * 2 - 1) << 1;
+        this.high = new long[capacity];
+        this.middle = new long[capacity];
+        this.low = new int[capacity];
+        this.values = new AbstractResourcePack[capacity];
+        this.mask = capacity - 1;
+
+        for (AbstractResourcePack pack : packs) {
+            byte[] hash = pack.getHashBytes();
+            if (hash != null && hash.length == HASH_LENGTH)
+                put(hash, pack);
+        }
+    }
+
+    private void put(byte[] hash, AbstractResourcePack pack) {
+        long h = (long) LONG.get(hash, 0), m = (long) LONG.get(hash, 8);
+        int l = (int) INT.get(hash, 16);
+
+        int slot = slot(h);
+        while (values[slot] != null && !matches(slot, h, m, l))
+            slot = (slot + 1) & mask;
+
+        high[slot] = h;
+        middle[slot] = m;
+        low[slot] = l;
+        values[slot] = pack;
+    }
+
+    AbstractResourcePack get(byte[] hash) {
+        if (hash == null || hash.length != HASH_LENGTH)
+            return null;
+
+        long h = (long) LONG.get(hash, 0), m = (long) LONG.get(hash, 8);
+        int l = (int) INT.get(hash, 16);
+
+        for (int slot = slot(h); values[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(slot, h, m, l))
+                return values[slot];
+        }
+        return null;
+    }
+
+    private boolean matches(int slot, long h, long m, int l) {
+        return high[slot] == h && middle[slot] == m && low[slot] == l;
+    }
+
+    private int slot(long high) {
+        // SHA-1 output is already uniformly distributed, so the leading bits make a fine hash code
+        return (int) (high ^ (high >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * The outcome of loading pack definitions: the resulting catalog change and every file that failed.
+ */
+public final class PackLoadReport {
+    private final CatalogDiff diff;
+    private final int parsed;
+    private final Map<Path, String> failures;
+    private final long elapsedMillis;
+
+    PackLoadReport(CatalogDiff diff, int parsed, Map<Path, String> failures, long elapsedMillis) {
+        this.diff = diff;
+        this.parsed = parsed;
+        this.failures = Map.copyOf(failures);
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public CatalogDiff getDiff() {
+        return diff;
+    }
+
+    /**
+     * @return the number of definition files parsed successfully.
+     */
+    public int getParsed() {
+        return parsed;
+    }
+
+    /**
+     * @return the reason each failed definition file could not be loaded, keyed by file.
+     */
+    public Map<Path, String> getFailures() {
+        return failures;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+}
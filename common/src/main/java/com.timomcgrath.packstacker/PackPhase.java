@@ -0,0 +1,54 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.util.Locale;
+
+/**
+ * When a pack is sent to a player without being asked for.
+ */
+public enum PackPhase {
+    /**
+     * Sent as soon as the player joins, before they are let loose. Keep this to packs needed to play.
+     */
+    JOIN,
+    /**
+     * Sent once the player is in the world, has finished the join downloads and has been idle for a while.
+     */
+    DEFERRED,
+    /**
+     * Only sent when requested through a command, a bundle or the API.
+     */
+    ON_DEMAND;
+
+    /**
+     * @param phase the configured phase name, or null if not set
+     * @param joinByDefault whether a pack without a phase is sent on join, set by the required and load_on_join options
+     */
+    static PackPhase parse(String phase, boolean joinByDefault) {
+        if (phase == null || phase.isBlank())
+            return joinByDefault ? JOIN : ON_DEMAND;
+
+        try {
+            return valueOf(phase.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid phase '" + phase + "', expected join, deferred or on_demand");
+        }
+    }
+}
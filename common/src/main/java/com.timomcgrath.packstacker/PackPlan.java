@@ -0,0 +1,151 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import net.kyori.adventure.audience.Audience;
+import net.kyori.adventure.resource.ResourcePackInfo;
+import net.kyori.adventure.resource.ResourcePackRequest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An immutable, priority sorted set of packs that are requested together, such as the packs sent on
+ * join or a bundle from config.yml. Sorting and building the request happens once, so sending only has
+ * to skip the packs a player already has.
+ */
+public final class PackPlan {
+    static final PackPlan EMPTY = new PackPlan(List.of());
+    private static final Comparator<AbstractResourcePack> ORDER = new PackStackerUtil.PackComparator()
+            .thenComparing(AbstractResourcePack::getName);
+
+    private final AbstractResourcePack[] packArray;
+    private final List<AbstractResourcePack> packs;
+    private final List<ResourcePackInfo> packInfos;
+    // The request for the whole plan, built on first send and shared between players
+    private volatile ResourcePackRequest request;
+
+    private PackPlan(List<AbstractResourcePack> packs) {
+        this.packs = packs;
+        this.packArray = packs.toArray(new AbstractResourcePack[0]);
+        this.packInfos = packs.stream().map(AbstractResourcePack::getPackInfo).toList();
+    }
+
+    public static PackPlan of(Collection<? extends AbstractResourcePack> packs) {
+        if (packs.isEmpty())
+            return EMPTY;
+
+        List<AbstractResourcePack> sorted = new ArrayList<>(packs);
+        sorted.sort(ORDER);
+        return new PackPlan(List.copyOf(sorted));
+    }
+
+    /**
+     * @param packs the packs in the order they should be applied, bottom of the stack first
+     * @return a plan that keeps the given order instead of sorting by priority
+     */
+    public static PackPlan inOrder(List<? extends AbstractResourcePack> packs) {
+        return packs.isEmpty() ? EMPTY : new PackPlan(List.copyOf(packs));
+    }
+
+    /**
+     * Requests every pack in this plan the player neither has nor is already downloading, in a single
+     * request prompted with the first pack's prompt.
+     *
+     * @return the packs that were requested, in plan order
+     */
+    public List<AbstractResourcePack> send(Audience audience, UUID playerId) {
+        if (packArray.length == 0)
+            return List.of();
+
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        // The player left before the plan was sent
+        if (packPlayer == null)
+            return List.of();
+
+        long[] claimed = packPlayer.claimRequests(packArray);
+        int count = 0;
+        for (long word : claimed)
+            count += Long.bitCount(word);
+
+        if (count == 0)
+            return List.of();
+
+        // Usually nothing from the plan is active yet, and the prebuilt request is sent as it is
+        List<AbstractResourcePack> requested = packs;
+        ResourcePackRequest request;
+        if (count == packArray.length) {
+            request = getRequest();
+        } else {
+            requested = new ArrayList<>(count);
+            List<ResourcePackInfo> requestedInfos = new ArrayList<>(count);
+            for (int i = 0; i < packArray.length; i++) {
+                if ((claimed[i >>> 6] & 1L << i) == 0)
+                    continue;
+                requested.add(packArray[i]);
+                requestedInfos.add(packInfos.get(i));
+            }
+            request = buildRequest(requested.get(0), requestedInfos);
+        }
+
+        audience.sendResourcePacks(request);
+        for (AbstractResourcePack pack : requested)
+            packPlayer.transition(pack, PackTransition.REQUESTED);
+        return requested;
+    }
+
+    /**
+     * @return the request for every pack in this plan, shared between players. Null if the plan is empty.
+     */
+    public ResourcePackRequest getRequest() {
+        if (packArray.length == 0)
+            return null;
+
+        ResourcePackRequest request = this.request;
+        if (request == null)
+            this.request = request = buildRequest(packArray[0], packInfos);
+        return request;
+    }
+
+    private static ResourcePackRequest buildRequest(AbstractResourcePack first, List<ResourcePackInfo> infos) {
+        return ResourcePackRequest.resourcePackRequest()
+                .packs(infos)
+                .prompt(first.getPrompt())
+                .callback(first.getCallback())
+                .build();
+    }
+
+    /**
+     * @return the packs in the order they are sent, priority order unless built with {@link #inOrder(List)}.
+     */
+    public List<AbstractResourcePack> getPacks() {
+        return packs;
+    }
+
+    public boolean isEmpty() {
+        return packs.isEmpty();
+    }
+
+    public int size() {
+        return packs.size();
+    }
+}
@@ -19,11 +19,43 @@
 package com.timomcgrath.packstacker;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PackPlayer {
+    private static final long[] NO_PACKS = new long[0];
+    private static final int[] EMPTY_STACK = new int[0];
     private final UUID uuid;
-    private final Map<String, AbstractResourcePack> activePacks = new HashMap<>();
+    private final long createdAt = System.nanoTime();
+    // System#nanoTime of the last input the platform reported, see #touch()
+    private volatile long lastActive = createdAt;
+    private final PlayerMailbox mailbox = new PlayerMailbox();
+    // Bitset of active pack ordinals, see AbstractResourcePack#getOrdinal, one bit per pack name loaded since
+    // startup, see PackCatalog. Only replaced from the mailbox.
+    private volatile long[] activePacks = NO_PACKS;
+    // The part of activePacks the client holds through the other side of a proxy, see PackSync.
+    // Only replaced from the mailbox.
+    private volatile long[] remotePacks = NO_PACKS;
+    // Ordinals the other side of a proxy reported as in flight, and the System#nanoTime that report expires at.
+    // Only replaced from the mailbox.
+    private volatile long[] remotePending = NO_PACKS;
+    private volatile long remotePendingDeadline;
+    // Ordinals of requested and active packs in the order they were sent, bottom of the client's stack first.
+    // Only replaced from the mailbox.
+    private volatile int[] stack = EMPTY_STACK;
+    // In-flight requests as {ordinal, System#nanoTime deadline} pairs. Only pending ordinals are present, so the
+    // array stays as short as the number of downloads in flight, expired pairs are dropped on the next write.
+    private final AtomicReference<long[]> pendingDeadlines = new AtomicReference<>(NO_PACKS);
     private boolean passedVerification = true;
+    // Set once the join packs were sent, players the platform skips (such as Bedrock players) never get it
+    private volatile boolean joined;
+    // The open coalescing window, guarded by this player's monitor
+    private StackTransaction coalescing;
+    // Whether a deferred delivery is waiting for this player, guarded by this player's monitor
+    private boolean deferredScheduled;
+    // Bitsets of the ordinals loaded by entering a world and by the running prefetch, see
+    // PackStackerUtil#changeWorld. Guarded by this player's monitor.
+    private long[] worldPacks = NO_PACKS;
+    private long[] prefetchPacks = NO_PACKS;
 
     public PackPlayer(UUID uuid) {
         this.uuid = uuid;
@@ -33,6 +65,13 @@ public class PackPlayer {
         return uuid;
     }
 
+    /**
+     * @return the {@link System#nanoTime()} at which this session was created.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
     public boolean passedVerification() {
         return passedVerification;
     }
@@ -41,19 +80,484 @@ public class PackPlayer {
         passedVerification = true;
     }
 
+    /**
+     * @return true once this player was sent the join plan, see {@link PackStackerUtil#loadJoinPlan}.
+     */
+    public boolean isJoined() {
+        return joined;
+    }
+
+    void setJoined() {
+        joined = true;
+    }
+
+    /**
+     * Records player input such as movement or chat, deferred packs wait for a quiet moment, see {@link DeferredDelivery}.
+     */
+    public void touch() {
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last {@link #touch()}, or of session creation if none.
+     */
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * @return true if no deferred delivery was waiting and the caller now owns it
+     */
+    synchronized boolean claimDeferred() {
+        if (deferredScheduled)
+            return false;
+        deferredScheduled = true;
+        return true;
+    }
+
+    synchronized void releaseDeferred() {
+        deferredScheduled = false;
+    }
+
+    /**
+     * @return bitset of the ordinals loaded by entering a world, see {@link PackStackerUtil#changeWorld}.
+     */
+    synchronized long[] getWorldPacks() {
+        return worldPacks;
+    }
+
+    synchronized void setWorldPacks(long[] packs) {
+        worldPacks = packs;
+    }
+
+    /**
+     * @param packs bitset of the ordinals the new prefetch loads
+     * @return bitset of the ordinals the prefetch it replaces loaded
+     */
+    synchronized long[] startPrefetch(long[] packs) {
+        long[] previous = prefetchPacks;
+        prefetchPacks = packs;
+        return previous;
+    }
+
+    /**
+     * Ends the running prefetch, called once the player entered a world.
+     *
+     * @return bitset of the ordinals the prefetch loaded
+     */
+    synchronized long[] takePrefetch() {
+        long[] packs = prefetchPacks;
+        prefetchPacks = NO_PACKS;
+        return packs;
+    }
+
+    /**
+     * Ends the prefetch that loaded the given packs, unless a world change or a later prefetch ended it already.
+     *
+     * @return true if it was still running
+     */
+    synchronized boolean endPrefetch(long[] packs) {
+        if (prefetchPacks != packs)
+            return false;
+        prefetchPacks = NO_PACKS;
+        return true;
+    }
+
+    StackTransaction getCoalescing() {
+        return coalescing;
+    }
+
+    void setCoalescing(StackTransaction coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Queues a pack state change. Changes for one player are applied in the order they were
+     * issued, no matter which thread issued them.
+     */
+    public void transition(AbstractResourcePack pack, PackTransition transition) {
+        // Only the claim in place now is ended by this change, a claim made after it was issued survives
+        long claim = pendingDeadline(pendingDeadlines.get(), pack.getOrdinal());
+        mailbox.post(() -> apply(pack, transition, claim));
+    }
+
+    /**
+     * Runs a task in order with this player's pack state changes.
+     */
+    public void post(Runnable task) {
+        mailbox.post(task);
+    }
+
+    private void apply(AbstractResourcePack pack, PackTransition transition, long claim) {
+        long[] active = activePacks, remote = remotePacks, deadlines = pendingDeadlines.get();
+        applyTransition(pack, transition, claim);
+        // Only held and pending packs are shared, so an accepted status sends nothing. A request was claimed
+        // before it was queued here and is shared now.
+        if (transition == PackTransition.REQUESTED || !Arrays.equals(active, activePacks) || remote != remotePacks
+                || deadlines != pendingDeadlines.get())
+            PackSync.getInstance().changed(this);
+    }
+
+    private void applyTransition(AbstractResourcePack pack, PackTransition transition, long claim) {
+        switch (transition) {
+            case REQUESTED -> push(pack);
+            case LOADED -> {
+                markActive(pack);
+                clearPending(pack, claim);
+                AdmissionScheduler.getInstance().finished(uuid, pack);
+            }
+            case FAILED -> {
+                clearPending(pack, claim);
+                pop(pack);
+                AdmissionScheduler.getInstance().finished(uuid, pack);
+            }
+            case REMOVED -> {
+                markInactive(pack);
+                clearPending(pack, claim);
+                pop(pack);
+                AdmissionScheduler.getInstance().finished(uuid, pack);
+            }
+        }
+    }
+
+    /**
+     * Moves the pack to the top of the stack, the client applies a resent pack above every other.
+     */
+    private void push(AbstractResourcePack pack) {
+        int ordinal = pack.getOrdinal();
+        if (ordinal < 0)
+            return;
+
+        int[] current = stack;
+        int[] next = new int[current.length + 1];
+        int size = 0;
+        for (int held : current) {
+            if (held != ordinal)
+                next[size++] = held;
+        }
+        next[size++] = ordinal;
+        stack = size == next.length ? next : Arrays.copyOf(next, size);
+    }
+
+    private void pop(AbstractResourcePack pack) {
+        int ordinal = pack.getOrdinal();
+        int[] current = stack;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != ordinal)
+                continue;
+
+            int[] next = new int[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, next.length - i);
+            stack = next;
+            return;
+        }
+    }
+
+    /**
+     * @return the ordinals of requested and active packs, bottom of the client's stack first. Read from the
+     * mailbox, see {@link #post(Runnable)}, to see every state change issued before. Must not be modified.
+     */
+    int[] getStackOrdinals() {
+        return stack;
+    }
+
+    /**
+     * @return the requested and active packs of the current catalog, bottom of the client's stack first.
+     */
+    public List<AbstractResourcePack> getStack() {
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        List<AbstractResourcePack> packs = new ArrayList<>(stack.length);
+        for (int ordinal : stack) {
+            AbstractResourcePack pack = catalog.get(ordinal);
+            if (pack != null)
+                packs.add(pack);
+        }
+        return packs;
+    }
+
+    /**
+     * Marks a pack as in flight unless a request for it is already running. The claim expires once
+     * the pack reaches a final status or after the configured pending timeout.
+     *
+     * @return true if the caller now owns the request and should send the pack.
+     */
+    public boolean claimRequest(AbstractResourcePack pack) {
+        int ordinal = pack.getOrdinal();
+        if (ordinal < 0)
+            return true;
+
+        long now = System.nanoTime();
+        long deadline = now + Config.get().getPendingTimeoutNanos();
+        while (true) {
+            long[] deadlines = pendingDeadlines.get();
+            if (isPending(deadlines, ordinal, now) || isRemotePending(ordinal, now))
+                return false;
+
+            if (pendingDeadlines.compareAndSet(deadlines, withDeadlines(deadlines, new int[]{ordinal}, 1, deadline, now)))
+                return true;
+        }
+    }
+
+    /**
+     * Claims every pack that is neither active nor in flight in a single update, see
+     * {@link #claimRequest(AbstractResourcePack)}.
+     *
+     * @return a bitset with bit i set if packs[i] was claimed
+     */
+    long[] claimRequests(AbstractResourcePack[] packs) {
+        long now = System.nanoTime();
+        long deadline = now + Config.get().getPendingTimeoutNanos();
+        int[] ordinals = new int[packs.length];
+        while (true) {
+            long[] deadlines = pendingDeadlines.get();
+            long[] active = activePacks;
+            long[] claimed = new long[(packs.length + 63) >>> 6];
+            int count = 0;
+            for (int i = 0; i < packs.length; i++) {
+                int ordinal = packs[i].getOrdinal();
+                if (hasPack(active, ordinal) || isPending(deadlines, ordinal, now) || isRemotePending(ordinal, now))
+                    continue;
+
+                if (ordinal >= 0)
+                    ordinals[count++] = ordinal;
+                claimed[i >>> 6] |= 1L << i;
+            }
+
+            if (count == 0 || pendingDeadlines.compareAndSet(deadlines, withDeadlines(deadlines, ordinals, count, deadline, now)))
+                return claimed;
+        }
+    }
+
+    /**
+     * @return true if this side or, until its report expires, the other side of a proxy is sending the pack.
+     */
+    public boolean isPending(AbstractResourcePack pack) {
+        long now = System.nanoTime();
+        return isPending(pendingDeadlines.get(), pack.getOrdinal(), now) || isRemotePending(pack.getOrdinal(), now);
+    }
+
+    /**
+     * @return true if any pack request is still in flight.
+     */
+    public boolean hasPending() {
+        long now = System.nanoTime();
+        long[] deadlines = pendingDeadlines.get();
+        for (int i = 1; i < deadlines.length; i += 2) {
+            if (deadlines[i] - now > 0)
+                return true;
+        }
+        if (remotePendingDeadline - now > 0) {
+            for (long word : remotePending) {
+                if (word != 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRemotePending(int ordinal, long now) {
+        return remotePendingDeadline - now > 0 && hasPack(remotePending, ordinal);
+    }
+
+    private static boolean isPending(long[] deadlines, int ordinal, long now) {
+        long deadline = pendingDeadline(deadlines, ordinal);
+        return deadline != 0 && deadline - now > 0;
+    }
+
+    /**
+     * @return the deadline of the ordinal's claim, or 0 if it has none
+     */
+    private static long pendingDeadline(long[] deadlines, int ordinal) {
+        for (int i = 0; ordinal >= 0 && i < deadlines.length; i += 2) {
+            if (deadlines[i] == ordinal)
+                return deadlines[i + 1];
+        }
+        return 0;
+    }
+
+    /**
+     * @param ordinals the first count entries are given the deadline, or have their claim ended if it is 0
+     * @return a copy of the claims with the change applied and the claims expired by now left out
+     */
+    private static long[] withDeadlines(long[] deadlines, int[] ordinals, int count, long deadline, long now) {
+        long[] next = new long[deadlines.length + (deadline == 0 ? 0 : count * 2)];
+        int size = 0;
+        outer:
+        for (int i = 0; i < deadlines.length; i += 2) {
+            if (deadlines[i + 1] - now <= 0)
+                continue;
+            for (int j = 0; j < count; j++) {
+                if (deadlines[i] == ordinals[j])
+                    continue outer;
+            }
+            next[size++] = deadlines[i];
+            next[size++] = deadlines[i + 1];
+        }
+        for (int j = 0; deadline != 0 && j < count; j++) {
+            next[size++] = ordinals[j];
+            next[size++] = deadline;
+        }
+        return size == next.length ? next : size == 0 ? NO_PACKS : Arrays.copyOf(next, size);
+    }
+
+    /**
+     * @param claim the deadline of the claim to end, a different claim in the slot is left alone
+     */
+    private void clearPending(AbstractResourcePack pack, long claim) {
+        int ordinal = pack.getOrdinal();
+        while (true) {
+            long[] deadlines = pendingDeadlines.get();
+            if (claim == 0 || pendingDeadline(deadlines, ordinal) != claim)
+                return;
+
+            if (pendingDeadlines.compareAndSet(deadlines, withDeadlines(deadlines, new int[]{ordinal}, 1, 0, System.nanoTime())))
+                return;
+        }
+    }
+
+    /**
+     * Replaces the packs the client holds through the other side of a proxy. Packs this side sent itself
+     * are kept. Required packs are left out, the other side's word never counts as the client holding them.
+     * Must be called from the mailbox, see {@link #post(Runnable)}.
+     *
+     * @param held bitset of the ordinals the other side reported as active
+     */
+    void setRemotePacks(long[] held) {
+        held = withoutRequired(held);
+        long[] active = activePacks, remote = remotePacks;
+        int length = Math.max(Math.max(active.length, remote.length), held.length);
+        long[] nextActive = new long[length], nextRemote = new long[length];
+        for (int i = 0; i < length; i++) {
+            long local = word(active, i) & ~word(remote, i);
+            nextRemote[i] = word(held, i) & ~local;
+            nextActive[i] = local | nextRemote[i];
+        }
+        activePacks = nextActive;
+        remotePacks = nextRemote;
+    }
+
+    /**
+     * Replaces the packs the other side of a proxy is sending. They count as pending on this side until the
+     * pending timeout passes or the next report replaces them, required packs are left out. Must be called
+     * from the mailbox, see {@link #post(Runnable)}.
+     *
+     * @param pending bitset of the ordinals the other side reported as in flight
+     */
+    void setRemotePending(long[] pending) {
+        remotePending = withoutRequired(pending);
+        remotePendingDeadline = System.nanoTime() + Config.get().getPendingTimeoutNanos();
+    }
+
+    private static long[] withoutRequired(long[] ordinals) {
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        long[] filtered = ordinals.clone();
+        for (int ordinal = 0; ordinal < filtered.length << 6; ordinal++) {
+            AbstractResourcePack pack = catalog.get(ordinal);
+            if (pack != null && pack.isRequired())
+                filtered[ordinal >>> 6] &= ~(1L << ordinal);
+        }
+        return filtered;
+    }
+
+    /**
+     * @return bitset of the active ordinals this side sent itself, leaving out those held through the other side
+     * of a proxy.
+     */
+    long[] getLocalPacks() {
+        long[] active = activePacks, remote = remotePacks;
+        long[] local = new long[active.length];
+        for (int i = 0; i < local.length; i++)
+            local[i] = active[i] & ~word(remote, i);
+        return local;
+    }
+
+    /**
+     * @return bitset of the ordinals with a request this side sent still in flight.
+     */
+    long[] getPendingPacks() {
+        long now = System.nanoTime();
+        long[] deadlines = pendingDeadlines.get();
+        long[] pending = NO_PACKS;
+        for (int i = 0; i < deadlines.length; i += 2) {
+            int ordinal = (int) deadlines[i];
+            if (deadlines[i + 1] - now <= 0)
+                continue;
+            if (ordinal >>> 6 >= pending.length)
+                pending = Arrays.copyOf(pending, (ordinal >>> 6) + 1);
+            pending[ordinal >>> 6] |= 1L << ordinal;
+        }
+        return pending;
+    }
+
+    private static long word(long[] bits, int index) {
+        return index < bits.length ? bits[index] : 0;
+    }
+
+    /**
+     * @deprecated use {@link #transition(AbstractResourcePack, PackTransition)} with {@link PackTransition#LOADED}
+     */
+    @Deprecated
     public void addPack(AbstractResourcePack pack) {
-        activePacks.put(pack.getName().toLowerCase(), pack);
+        transition(pack, PackTransition.LOADED);
     }
 
+    /**
+     * @deprecated use {@link #transition(AbstractResourcePack, PackTransition)} with {@link PackTransition#REMOVED}
+     */
+    @Deprecated
     public void removePack(AbstractResourcePack pack) {
-      activePacks.remove(pack.getName().toLowerCase());
+        transition(pack, PackTransition.REMOVED);
+    }
+
+    private void markActive(AbstractResourcePack pack) {
+        int ordinal = pack.getOrdinal();
+        if (ordinal < 0)
+            return;
+
+        int word = ordinal >>> 6;
+        long[] packs = Arrays.copyOf(activePacks, Math.max(activePacks.length, word + 1));
+        packs[word] |= 1L << ordinal;
+        activePacks = packs;
+        clearRemote(ordinal);
+    }
+
+    private void markInactive(AbstractResourcePack pack) {
+        int ordinal = pack.getOrdinal();
+        int word = ordinal >>> 6;
+        if (ordinal < 0 || word >= activePacks.length)
+            return;
+
+        long[] packs = activePacks.clone();
+        packs[word] &= ~(1L << ordinal);
+        activePacks = packs;
+        clearRemote(ordinal);
+    }
+
+    // A status reported to this side supersedes what the other side of a proxy reported
+    private void clearRemote(int ordinal) {
+        if (hasPack(remotePacks, ordinal)) {
+            long[] remote = remotePacks.clone();
+            remote[ordinal >>> 6] &= ~(1L << ordinal);
+            remotePacks = remote;
+        }
     }
 
     public boolean hasPack(AbstractResourcePack pack) {
-        return activePacks.containsKey(pack.getName().toLowerCase());
+        return hasPack(activePacks, pack.getOrdinal());
+    }
+
+    static boolean hasPack(long[] packs, int ordinal) {
+        int word = ordinal >>> 6;
+        return ordinal >= 0 && word < packs.length && (packs[word] & 1L << ordinal) != 0;
     }
 
+    /**
+     * @param packName the lowercase pack name
+     * @return the cataloged pack if it is active on this player, otherwise null.
+     */
     public AbstractResourcePack getPack(String packName) {
-        return activePacks.get(packName);
+        AbstractResourcePack pack = PackCache.getInstance().get(packName);
+        return pack != null && hasPack(pack) ? pack : null;
     }
 }
@@ -19,13 +19,16 @@
 package com.timomcgrath.packstacker;
 
 import net.kyori.adventure.audience.Audience;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public interface PackPlugin {
     void reloadMessages();
-    void reloadPacks();
-    void reloadAll();
+    CompletableFuture<PackLoadReport> reloadPacks();
+    CompletableFuture<PackLoadReport> reloadAll();
     boolean hasPermission(Audience audience, String permission);
 
     default boolean hasAnyPermission(Audience audience, String... permissions) {
@@ -37,5 +40,21 @@ public interface PackPlugin {
         return false;
     }
 
+    /**
+     * @return the lowercase names of online players, in alphabetical order.
+     */
     List<String> getOnlinePlayers();
+
+    boolean isOnline(UUID playerId);
+
+    /**
+     * @return the online player with this id, or null if they are not connected.
+     */
+    @Nullable
+    Audience getAudience(UUID playerId);
+
+    /**
+     * Runs a task on the platform scheduler after the given delay.
+     */
+    void runLater(Runnable task, long delayMillis);
 }
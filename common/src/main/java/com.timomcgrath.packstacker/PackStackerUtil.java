@@ -19,79 +19,281 @@
 package com.timomcgrath.packstacker;
 
 import net.kyori.adventure.audience.Audience;
-import net.kyori.adventure.resource.ResourcePackInfo;
-import net.kyori.adventure.resource.ResourcePackRequest;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 public class PackStackerUtil {
 
     /**
-     * attempts to load a pack by name onto a player.
+     * attempts to load a pack, or a bundle from config.yml, by name onto a player.
      *
      * @param audience
      * @param playerId
      * @param name
-     * @return if the pack was found and requested to load to client
+     * @return if a pack or bundle was found
      */
     public static boolean loadByName(Audience audience, UUID playerId, String name) {
-        return loadByName(audience, playerId, name, null);
+        return loadByName(audience, playerId, name, null, null);
     }
 
-    public static boolean loadByName(Audience audience, UUID playerId, String name, java.util.function.Consumer<AbstractResourcePack> onFound) {
-        PackCache packCache = PackCache.getInstance();
-        AbstractResourcePack resourcePack = packCache.get(name);
+    /**
+     * @param onFound called with the pack, or each pack of the bundle, before it is queued
+     */
+    public static boolean loadByName(Audience audience, UUID playerId, String name, Consumer<AbstractResourcePack> onFound) {
+        return loadByName(audience, playerId, name, onFound, null);
+    }
 
-        if (resourcePack != null) {
-            if (onFound != null) {
+    /**
+     * Queues the pack or bundle in the player's coalescing window, see {@link StackTransaction}.
+     *
+     * @param onFound     called with the pack, or each pack of the bundle, before it is queued
+     * @param onRequested called with the packs that were requested, if any
+     */
+    public static boolean loadByName(Audience audience, UUID playerId, String name, Consumer<AbstractResourcePack> onFound,
+                                     Consumer<List<AbstractResourcePack>> onRequested) {
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        AbstractResourcePack resourcePack = catalog.getByName(name);
+        if (onFound != null) {
+            if (resourcePack != null)
                 onFound.accept(resourcePack);
-            }
-            resourcePack.load(audience, playerId);
+            else if (catalog.getBundle(name) != null)
+                catalog.getBundle(name).getPacks().forEach(onFound);
+        }
+        // The player left while the command was handled
+        if (packPlayer == null)
+            return resourcePack != null || catalog.getBundle(name) != null;
+
+        if (resourcePack != null) {
+            if (packPlayer.hasPack(resourcePack))
+                Messaging.sendMsg(audience, "pack_already_loaded", resourcePack.getName());
+            else if (packPlayer.isPending(resourcePack))
+                Messaging.sendMsg(audience, "pack_pending", resourcePack.getName());
+            else
+                StackTransaction.coalesce(resourcePack.getPlugin(), audience, playerId,
+                        transaction -> transaction.load(resourcePack).onRequested(onRequested));
+            return true;
+        }
+
+        PackPlan bundle = catalog.getBundle(name);
+        if (bundle != null) {
+            if (bundle.getPacks().stream().allMatch(packPlayer::hasPack))
+                Messaging.sendMsg(audience, "pack_already_loaded", name);
+            else
+                StackTransaction.coalesce(bundle.getPacks().get(0).getPlugin(), audience, playerId,
+                        transaction -> transaction.load(bundle).onRequested(onRequested));
             return true;
         }
         return false;
     }
 
     /**
-     * Loads multiple ResourcePacks at once. Prompt information is based on the pack with the most priority.
+     * Loads multiple ResourcePacks at once through the player's coalescing window and the {@link AdmissionScheduler},
+     * see {@link StackTransaction}. Prompt information is based on the pack with the most priority.
+     * Prefer {@link #loadJoinPlan(PackPlugin, Audience, UUID, Consumer)} or a prebuilt {@link PackPlan} for packs sent repeatedly.
      *
      * @param audience
      * @param playerId
      * @param packs
+     * @return the packs that were queued, those the player neither has nor is downloading, in priority order
      */
     public static List<AbstractResourcePack> loadMultiple(Audience audience, UUID playerId, List<AbstractResourcePack> packs) {
-        if (packs.isEmpty())
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packs.isEmpty() || packPlayer == null)
             return List.of();
 
+        PackPlan plan = PackPlan.of(packs);
+        List<AbstractResourcePack> queued = plan.getPacks().stream()
+                .filter(pack -> !packPlayer.hasPack(pack) && !packPlayer.isPending(pack))
+                .toList();
+        if (!queued.isEmpty())
+            StackTransaction.coalesce(queued.get(0).getPlugin(), audience, playerId, transaction -> transaction.load(plan));
+        return queued;
+    }
+
+    /**
+     * Queues the current catalog's join plan in the player's coalescing window, see {@link StackTransaction},
+     * and starts waiting to send the deferred packs, see {@link DeferredDelivery}.
+     *
+     * @param onRequested called with the join packs that were requested, if any
+     */
+    public static void loadJoinPlan(PackPlugin plugin, Audience audience, UUID playerId, Consumer<List<AbstractResourcePack>> onRequested) {
         PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
-        packs.sort(new PackStackerUtil.PackComparator());
-        ArrayList<ResourcePackInfo> packInfos = new ArrayList<>();
-        packs = packs.stream().filter(pack -> !packPlayer.hasPack(pack)).toList();
+        if (packPlayer != null)
+            packPlayer.setJoined();
+        DeferredDelivery.schedule(plugin, playerId);
 
-        if (packs.isEmpty())
-            return List.of();
+        PackPlan joinPlan = PackCache.getInstance().getCatalog().getJoinPlan();
+        if (joinPlan.isEmpty())
+            return;
 
-        packs.forEach(pack -> packInfos.add(pack.getPackInfo()));
-        AbstractResourcePack first = packs.get(0);
+        StackTransaction.coalesce(plugin, audience, playerId, transaction -> transaction.load(joinPlan).onRequested(onRequested));
+    }
 
-        ResourcePackRequest request = ResourcePackRequest.resourcePackRequest()
-                .packs(packInfos).prompt(first.getPrompt())
-                .build().callback((uuid, status, aud) -> first.packCallback(uuid, status, aud, playerId));
-        audience.sendResourcePacks(request);
-        request.callback();
-        return packs;
+    /**
+     * Sends the join plan without waiting for the coalescing window, for clients in a phase that ends soon,
+     * such as the configuration phase. A later {@link #loadJoinPlan(PackPlugin, Audience, UUID, Consumer)}
+     * skips the packs sent here.
+     */
+    public static void sendJoinPlan(PackPlugin plugin, Audience audience, UUID playerId) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer != null)
+            packPlayer.setJoined();
+        PackPlan joinPlan = PackCache.getInstance().getCatalog().getJoinPlan();
+        if (joinPlan.isEmpty())
+            return;
+
+        new StackTransaction(audience, playerId).load(joinPlan).submit(plugin);
     }
 
     /**
-     * Filters both required and load_on_join packs from a given list of packs.
+     * Loads the packs bound to the world a player entered and, if enabled in config.yml, unloads the on demand
+     * packs an earlier world change loaded that are not bound to the new one. Packs a prefetch loaded are kept
+     * if the new world uses them and unloaded otherwise. Everything happens in the same client reload.
+     *
+     * @param from the world the player left, or null when they just joined
+     * @param to the world the player is in now
      */
-    public static List<AbstractResourcePack> getPacksToLoadOnJoin() {
-        Collection<AbstractResourcePack> cached = PackCache.getInstance().getAll();
+    public static void changeWorld(PackPlugin plugin, Audience audience, UUID playerId, @Nullable String from, String to) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null)
+            return;
 
-        if (cached.isEmpty())
-            return List.of();
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        PackPlan entered = catalog.getWorldPlan(to);
+        long[] prefetched = packPlayer.takePrefetch();
+        long[] enteredPacks = toBits(entered.getPacks());
+        long[] loaded = or(missing(packPlayer, entered.getPacks()), and(prefetched, enteredPacks));
+
+        long[] previous = packPlayer.getWorldPacks();
+        long[] leaving = andNot(or(Config.get().isUnloadWorldPacks() ? previous : new long[0], prefetched), enteredPacks);
+        List<AbstractResourcePack> left = unloadable(catalog, leaving);
+        packPlayer.setWorldPacks(andNot(or(previous, loaded), leaving));
+
+        if (entered.isEmpty() && left.isEmpty())
+            return;
 
-        return new ArrayList<>(PackCache.getInstance().getAll().stream().filter(pack -> pack.isRequired() || pack.loadOnJoin()).toList());
+        StackTransaction.coalesce(plugin, audience, playerId, transaction -> {
+            left.forEach(transaction::unload);
+            transaction.load(entered);
+        });
+    }
+
+    /**
+     * Starts sending the packs bound to a world before the player gets there, for example while they wait in
+     * a queue lobby or step into a portal, so the client has them by the time it arrives. The packs are applied
+     * right away. If the player does not enter the world within the prefetch_timeout from config.yml, or enters
+     * a different one, they are unloaded again. Prefetches are admitted after every other waiting request, see
+     * {@link StackTransaction#prefetch(PackPlan)}.
+     */
+    public static void prefetchWorld(PackPlugin plugin, Audience audience, UUID playerId, String world) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        PackPlan plan = PackCache.getInstance().getCatalog().getWorldPlan(world);
+        if (packPlayer == null || plan.isEmpty())
+            return;
+
+        // Only packs the player does not hold yet are taken back if the prefetch goes unused
+        long[] fetched = missing(packPlayer, plan.getPacks());
+        List<AbstractResourcePack> stale = unloadable(PackCache.getInstance().getCatalog(),
+                andNot(packPlayer.startPrefetch(fetched), toBits(plan.getPacks())));
+        StackTransaction.coalesce(plugin, audience, playerId, transaction -> {
+            stale.forEach(transaction::unload);
+            transaction.prefetch(plan);
+        });
+
+        long timeout = Config.get().getPrefetchTimeoutMillis();
+        if (timeout > 0)
+            plugin.runLater(() -> expirePrefetch(plugin, audience, playerId, fetched), timeout);
+    }
+
+    private static void expirePrefetch(PackPlugin plugin, Audience audience, UUID playerId, long[] fetched) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null || !packPlayer.endPrefetch(fetched))
+            return;
+
+        List<AbstractResourcePack> expired = unloadable(PackCache.getInstance().getCatalog(), fetched);
+        if (!expired.isEmpty())
+            StackTransaction.coalesce(plugin, audience, playerId, transaction -> expired.forEach(transaction::unload));
+    }
+
+    /**
+     * @return the on demand packs among the given ordinals that are not required, join and deferred packs are
+     * sent to every player anyway
+     */
+    private static List<AbstractResourcePack> unloadable(PackCatalog catalog, long[] ordinals) {
+        List<AbstractResourcePack> packs = new ArrayList<>();
+        for (int ordinal = 0; ordinal < ordinals.length << 6; ordinal++) {
+            if (!PackPlayer.hasPack(ordinals, ordinal))
+                continue;
+
+            AbstractResourcePack pack = catalog.get(ordinal);
+            if (pack != null && pack.getPhase() == PackPhase.ON_DEMAND && !pack.isRequired())
+                packs.add(pack);
+        }
+        return packs;
+    }
+
+    // Bitsets of pack ordinals, as kept by PackPlayer
+
+    private static long[] missing(PackPlayer packPlayer, List<AbstractResourcePack> packs) {
+        List<AbstractResourcePack> missing = new ArrayList<>(packs.size());
+        for (AbstractResourcePack pack : packs) {
+            if (!packPlayer.hasPack(pack) && !packPlayer.isPending(pack))
+                missing.add(pack);
+        }
+        return toBits(missing);
+    }
+
+    private static long[] toBits(List<AbstractResourcePack> packs) {
+        long[] bits = new long[0];
+        for (AbstractResourcePack pack : packs) {
+            int ordinal = pack.getOrdinal();
+            if (ordinal < 0)
+                continue;
+            if (ordinal >>> 6 >= bits.length)
+                bits = Arrays.copyOf(bits, (ordinal >>> 6) + 1);
+            bits[ordinal >>> 6] |= 1L << ordinal;
+        }
+        return bits;
+    }
+
+    private static long[] or(long[] a, long[] b) {
+        long[] bits = Arrays.copyOf(a, Math.max(a.length, b.length));
+        for (int i = 0; i < b.length; i++)
+            bits[i] |= b[i];
+        return bits;
+    }
+
+    private static long[] and(long[] a, long[] b) {
+        long[] bits = new long[Math.min(a.length, b.length)];
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = a[i] & b[i];
+        return bits;
+    }
+
+    private static long[] andNot(long[] a, long[] b) {
+        long[] bits = a.clone();
+        for (int i = 0; i < Math.min(a.length, b.length); i++)
+            bits[i] &= ~b[i];
+        return bits;
+    }
+
+    /**
+     * Makes the player's pack stack match the given packs, bottom first. Only packs missing from the client,
+     * or held in the wrong order, are sent, see {@link StackTransaction#stack(List)}.
+     */
+    public static void applyStack(PackPlugin plugin, Audience audience, UUID playerId, List<? extends AbstractResourcePack> stack) {
+        StackTransaction.coalesce(plugin, audience, playerId, transaction -> transaction.stack(stack));
+    }
+
+    /**
+     * @return a copy of the packs in the join phase, in priority order. Prefer
+     * {@link PackCatalog#getJoinPacks()}, which is not copied on every call.
+     */
+    public static List<AbstractResourcePack> getPacksToLoadOnJoin() {
+        return new ArrayList<>(PackCache.getInstance().getCatalog().getJoinPacks());
     }
 
     /**
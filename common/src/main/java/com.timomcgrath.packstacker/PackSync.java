@@ -0,0 +1,210 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares each player's pack state between a Velocity proxy and its backends over the {@link #CHANNEL}
+ * plugin messaging channel, so neither side sends packs the client already has or is downloading
+ * through the other.
+ * <p>
+ * Both sides send a snapshot of the packs they sent themselves whenever it changes. Packs are identified
+ * by their id, which is derived from name and hash and so matches on both sides when they share .pack files.
+ * The proxy owns the join packs: a backend holds its own join sends until the proxy's first snapshot
+ * arrives or {@link Config#getSyncWaitMillis()} passes.
+ */
+public final class PackSync {
+    public static final String CHANNEL = "packstacker:sync";
+    private static final Logger LOGGER = Logger.getLogger(PackSync.class.getName());
+    private static final byte VERSION = 1;
+    private static final PackSync instance = new PackSync();
+    // Players with a snapshot waiting to be sent
+    private final Set<UUID> dirty = ConcurrentHashMap.newKeySet();
+    // Tasks held until the other side's first snapshot for the player arrives
+    private final Map<UUID, Runnable> awaiting = new ConcurrentHashMap<>();
+    private volatile PackPlugin plugin;
+    private volatile BiConsumer<UUID, byte[]> sender;
+
+    private PackSync() {
+    }
+
+    /**
+     * @param sender delivers a message on {@link #CHANNEL} to the other side of the player's connection
+     */
+    public void enable(PackPlugin plugin, BiConsumer<UUID, byte[]> sender) {
+        this.plugin = plugin;
+        this.sender = sender;
+    }
+
+    public boolean isEnabled() {
+        return sender != null && Config.get().isSyncEnabled();
+    }
+
+    /**
+     * Runs a task once the other side's first snapshot for this player has been applied, or after the
+     * configured wait. Runs it right away if syncing is disabled.
+     */
+    public void awaitSnapshot(UUID playerId, Runnable task) {
+        PackPlugin plugin = this.plugin;
+        if (!isEnabled() || plugin == null) {
+            task.run();
+            return;
+        }
+
+        awaiting.put(playerId, task);
+        plugin.runLater(() -> {
+            if (awaiting.remove(playerId, task))
+                task.run();
+        }, Config.get().getSyncWaitMillis());
+    }
+
+    /**
+     * Sends the player's current snapshot to the other side.
+     *
+     * @param promised packs this side is about to send, reported as in flight so the other side leaves them alone
+     */
+    public void sendSnapshot(UUID playerId, PackPlan promised) {
+        BiConsumer<UUID, byte[]> sender = this.sender;
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (!isEnabled() || packPlayer == null)
+            return;
+
+        // Read from the mailbox so the snapshot reflects every state change issued before
+        packPlayer.post(() -> sender.accept(playerId, encode(packPlayer, promised)));
+    }
+
+    /**
+     * Called after each state change of a player. Changes made in a burst are sent as one snapshot.
+     */
+    void changed(PackPlayer packPlayer) {
+        PackPlugin plugin = this.plugin;
+        if (plugin == null || !isEnabled() || !dirty.add(packPlayer.getUUID()))
+            return;
+
+        plugin.runLater(() -> {
+            dirty.remove(packPlayer.getUUID());
+            sendSnapshot(packPlayer.getUUID(), PackPlan.EMPTY);
+        }, 0);
+    }
+
+    /**
+     * Applies a snapshot from the other side. Malformed messages are ignored.
+     */
+    public void receive(UUID playerId, byte[] data) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null || !isEnabled())
+            return;
+
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        long[] held, pending;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readByte() != VERSION)
+                return;
+            held = readPacks(in, catalog);
+            pending = readPacks(in, catalog);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Ignoring malformed sync message for " + playerId, e);
+            return;
+        }
+
+        packPlayer.post(() -> {
+            packPlayer.setRemotePacks(held);
+            packPlayer.setRemotePending(pending);
+        });
+
+        Runnable task = awaiting.remove(playerId);
+        if (task != null)
+            packPlayer.post(task);
+    }
+
+    void removePlayer(UUID playerId) {
+        awaiting.remove(playerId);
+        dirty.remove(playerId);
+    }
+
+    private static byte[] encode(PackPlayer packPlayer, PackPlan promised) {
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        long[] pending = packPlayer.getPendingPacks();
+        for (AbstractResourcePack pack : promised.getPacks()) {
+            int ordinal = pack.getOrdinal();
+            if (ordinal < 0)
+                continue;
+            if (ordinal >>> 6 >= pending.length)
+                pending = Arrays.copyOf(pending, (ordinal >>> 6) + 1);
+            pending[ordinal >>> 6] |= 1L << ordinal;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writePacks(out, packPlayer.getLocalPacks(), catalog);
+            writePacks(out, pending, catalog);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writePacks(DataOutputStream out, long[] ordinals, PackCatalog catalog) throws IOException {
+        int count = 0;
+        for (int ordinal = 0; ordinal < catalog.getOrdinalBound(); ordinal++) {
+            if (PackPlayer.hasPack(ordinals, ordinal) && catalog.get(ordinal) != null)
+                count++;
+        }
+
+        out.writeShort(count);
+        for (int ordinal = 0; ordinal < catalog.getOrdinalBound(); ordinal++) {
+            AbstractResourcePack pack = catalog.get(ordinal);
+            if (pack == null || !PackPlayer.hasPack(ordinals, ordinal))
+                continue;
+            out.writeLong(pack.getUuid().getMostSignificantBits());
+            out.writeLong(pack.getUuid().getLeastSignificantBits());
+        }
+    }
+
+    // Packs the other side knows but this side does not are skipped
+    private static long[] readPacks(DataInputStream in, PackCatalog catalog) throws IOException {
+        int count = in.readUnsignedShort();
+        long[] ordinals = new long[(catalog.getOrdinalBound() + 63) >>> 6];
+        for (int i = 0; i < count; i++) {
+            AbstractResourcePack pack = catalog.get(new UUID(in.readLong(), in.readLong()));
+            if (pack != null && pack.getOrdinal() >= 0)
+                ordinals[pack.getOrdinal() >>> 6] |= 1L << pack.getOrdinal();
+        }
+        return ordinals;
+    }
+
+    public static PackSync getInstance() {
+        return instance;
+    }
+}
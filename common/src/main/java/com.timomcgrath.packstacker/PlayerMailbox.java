@@ -0,0 +1,62 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single consumer mailbox. Tasks posted from any thread run one at a time in posting order.
+ * There is no dedicated thread: whichever poster finds the mailbox idle drains it, so mailboxes
+ * of different players progress in parallel without sharing a lock.
+ */
+public final class PlayerMailbox {
+    private static final Logger LOGGER = Logger.getLogger("PackStacker");
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    public void post(Runnable task) {
+        queue.offer(task);
+        drain();
+    }
+
+    private void drain() {
+        // Re-check after releasing ownership, a task posted in between would otherwise be stranded
+        while (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                Runnable task;
+                while ((task = queue.poll()) != null)
+                    run(task);
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Pack state transition failed", e);
+        }
+    }
+}
@@ -19,13 +19,23 @@
 package com.timomcgrath.packstacker;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
+/**
+ * Per-player pack state, safe to read and write from any thread. Entries are removed on quit, and
+ * {@link #sweep(Predicate)} evicts any session left behind by a missed quit or disconnect event.
+ */
 public class PlayerPackCache {
-    private static PlayerPackCache instance;
+    public static final long SWEEP_INTERVAL_MINUTES = 5;
+    // Sessions younger than this are never swept, so a player still logging in is not evicted
+    private static final long SESSION_GRACE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final PlayerPackCache instance = new PlayerPackCache();
     private final Map<UUID, PackPlayer> playerMap;
 
     private PlayerPackCache() {
-        this.playerMap = new HashMap<>();
+        this.playerMap = new ConcurrentHashMap<>();
     }
 
     public PackPlayer getPlayer(UUID uuid) {
@@ -34,19 +44,54 @@ public class PlayerPackCache {
 
     public void removePlayer(UUID uuid) {
         playerMap.remove(uuid);
+        AdmissionScheduler.getInstance().removePlayer(uuid);
+        PackSync.getInstance().removePlayer(uuid);
     }
 
+    /**
+     * @return the existing session for this player, or a newly created one.
+     */
     public PackPlayer initPlayer(UUID uuid) {
-        if (playerMap.containsKey(uuid))
-            return getPlayer(uuid);
+        return playerMap.computeIfAbsent(uuid, PackPlayer::new);
+    }
+
+    /**
+     * Evicts every session whose player is no longer online.
+     *
+     * @param isOnline tests whether the player with the given id is currently connected
+     * @return the number of evicted sessions
+     */
+    public int sweep(Predicate<UUID> isOnline) {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (PackPlayer player : playerMap.values()) {
+            if (now - player.getCreatedAt() <= SESSION_GRACE_NANOS || isOnline.test(player.getUUID()))
+                continue;
+
+            if (playerMap.remove(player.getUUID(), player)) {
+                AdmissionScheduler.getInstance().removePlayer(player.getUUID());
+                PackSync.getInstance().removePlayer(player.getUUID());
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return a live view of every tracked player session.
+     */
+    public Collection<PackPlayer> getPlayers() {
+        return Collections.unmodifiableCollection(playerMap.values());
+    }
 
-        PackPlayer packPlayer = new PackPlayer(uuid);
-        return playerMap.put(uuid, packPlayer);
+    /**
+     * @return the number of live player sessions.
+     */
+    public int size() {
+        return playerMap.size();
     }
 
     public static PlayerPackCache getInstance() {
-        if (instance == null)
-            instance = new PlayerPackCache();
         return instance;
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled MiniMessage prompts interned by their source string. Packs sharing a prompt share one
+ * Component, and reloads reuse prompts whose text did not change. Least recently used entries are
+ * dropped once the configured size is exceeded.
+ * <p>
+ * The size only bounds this cache. Every loaded pack keeps its prebuilt request, and with it the prompt,
+ * until the pack is reloaded away, so prompts in use stay in memory regardless.
+ */
+public final class PromptCache {
+    private static final PromptCache instance = new PromptCache();
+    private final Map<String, Component> prompts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Component> eldest) {
+            return size() > Config.get().getPromptCacheSize();
+        }
+    };
+
+    private PromptCache() {
+    }
+
+    public static PromptCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param source a MiniMessage string
+     * @return the compiled prompt, shared with every other caller passing the same source.
+     */
+    public Component get(String source) {
+        synchronized (prompts) {
+            Component prompt = prompts.get(source);
+            if (prompt != null)
+                return prompt;
+        }
+
+        // Compile outside the lock, two threads racing on the same new prompt just do the work twice
+        Component prompt = MiniMessage.miniMessage().deserialize(source);
+        synchronized (prompts) {
+            Component existing = prompts.putIfAbsent(source, prompt);
+            return existing != null ? existing : prompt;
+        }
+    }
+}
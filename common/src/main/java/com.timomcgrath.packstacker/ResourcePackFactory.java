@@ -22,5 +22,9 @@ import ninja.leaping.configurate.ConfigurationNode;
 
 public interface ResourcePackFactory {
 
-    AbstractResourcePack create(ConfigurationNode root);
+    AbstractResourcePack create(PackDefinition definition);
+
+    default AbstractResourcePack create(ConfigurationNode root) {
+        return create(PackDefinition.fromNode(root));
+    }
 }
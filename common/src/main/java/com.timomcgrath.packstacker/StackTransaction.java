@@ -0,0 +1,357 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker;
+
+import net.kyori.adventure.audience.Audience;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A set of pack loads and unloads for one player that is applied with at most one
+ * {@code removeResourcePacks} and one {@code sendResourcePacks} call, so the client reloads its resources
+ * once. Loading and then unloading the same pack, or the reverse, keeps only the last change.
+ * <p>
+ * Use {@link #coalesce(PackPlugin, Audience, UUID, Consumer)} to merge every change issued for a player
+ * within the configured coalescing window and pass it through the {@link AdmissionScheduler}, or build a
+ * transaction and {@link #commit()} it directly.
+ * A transaction is not thread safe on its own.
+ * <p>
+ * Calling {@link #stack(List)} makes the transaction declarative: it describes the player's whole stack,
+ * and commit works out the fewest removals and resends that turn the client's stack into it.
+ */
+public final class StackTransaction {
+    private final Audience audience;
+    private final UUID playerId;
+    // True for a load, false for an unload, in the order the packs were first touched
+    private final Map<AbstractResourcePack, Boolean> changes = new LinkedHashMap<>();
+    private final List<Consumer<List<AbstractResourcePack>>> requestListeners = new ArrayList<>();
+    // Set while the transaction holds exactly one plan and nothing else, so its prebuilt request can be sent
+    private PackPlan plan;
+    // Held while admitted, released by reporting what was sent
+    private AdmissionScheduler.Ticket ticket;
+    // The declared stack, bottom first, or null while the transaction only holds individual changes
+    private List<AbstractResourcePack> desired;
+    // False while every change is a prefetch, which waits behind every other request for admission
+    private boolean urgent;
+
+    public StackTransaction(Audience audience, UUID playerId) {
+        this.audience = audience;
+        this.playerId = playerId;
+    }
+
+    /**
+     * Adds changes to the player's open coalescing window, opening one if there is none. The window is
+     * committed once {@link Config#getCoalesceWindowMillis()} has passed, or right away if it is zero.
+     */
+    public static void coalesce(PackPlugin plugin, Audience audience, UUID playerId, Consumer<StackTransaction> changes) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null)
+            return;
+
+        StackTransaction transaction;
+        boolean opened;
+        synchronized (packPlayer) {
+            transaction = packPlayer.getCoalescing();
+            opened = transaction == null;
+            if (opened) {
+                transaction = new StackTransaction(audience, playerId);
+                packPlayer.setCoalescing(transaction);
+            }
+            changes.accept(transaction);
+        }
+
+        if (!opened)
+            return;
+
+        long window = Config.get().getCoalesceWindowMillis();
+        if (window == 0)
+            close(packPlayer).admit(plugin, packPlayer);
+        else
+            plugin.runLater(() -> close(packPlayer).admit(plugin, packPlayer), window);
+    }
+
+    /**
+     * Skips the coalescing window and passes this transaction straight to the {@link AdmissionScheduler}, for
+     * changes that have to reach the client within a short phase, such as its configuration phase.
+     */
+    public void submit(PackPlugin plugin) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null)
+            return;
+
+        admit(plugin, packPlayer);
+    }
+
+    /**
+     * Commits once the {@link AdmissionScheduler} lets the packs this transaction may send start downloading.
+     */
+    private void admit(PackPlugin plugin, PackPlayer packPlayer) {
+        List<AbstractResourcePack> loads = plan != null ? plan.getPacks() : desired != null ? desired : null;
+        int downloads = 0;
+        long bytes = 0;
+        boolean required = false;
+        if (loads == null) {
+            for (Map.Entry<AbstractResourcePack, Boolean> change : changes.entrySet()) {
+                AbstractResourcePack pack = change.getKey();
+                if (change.getValue() && !packPlayer.hasPack(pack)) {
+                    downloads++;
+                    bytes += pack.getSize();
+                    required |= pack.isRequired();
+                }
+            }
+        } else {
+            for (AbstractResourcePack pack : loads) {
+                if (!packPlayer.hasPack(pack)) {
+                    downloads++;
+                    bytes += pack.getSize();
+                    required |= pack.isRequired();
+                }
+            }
+        }
+
+        AdmissionScheduler.Lane lane = plugin.hasPermission(audience, "pack.priority") ? AdmissionScheduler.Lane.STAFF
+                : required ? AdmissionScheduler.Lane.REQUIRED
+                : urgent ? AdmissionScheduler.Lane.STANDARD : AdmissionScheduler.Lane.PREFETCH;
+        AdmissionScheduler.getInstance().submit(plugin, playerId, lane, downloads, bytes, ticket -> {
+            this.ticket = ticket;
+            try {
+                commit();
+            } catch (RuntimeException e) {
+                // Gives the admission slots back, nothing after the failure was sent
+                requested(List.of());
+                throw e;
+            }
+        });
+    }
+
+    private static StackTransaction close(PackPlayer packPlayer) {
+        synchronized (packPlayer) {
+            StackTransaction transaction = packPlayer.getCoalescing();
+            packPlayer.setCoalescing(null);
+            return transaction;
+        }
+    }
+
+    /**
+     * Declares the player's whole stack. Loads made so far, such as a join plan in the same coalescing window,
+     * are kept on top of it, earlier unloads are superseded. Later loads add to the top of the declared stack
+     * and unloads take packs out of it. Required packs are only removed from players with pack.bypass.
+     *
+     * @param packs the packs in the order the client should apply them, bottom first
+     */
+    public StackTransaction stack(List<? extends AbstractResourcePack> packs) {
+        flattenPlan();
+        List<AbstractResourcePack> next = new ArrayList<>(new LinkedHashSet<>(packs));
+        changes.forEach((pack, load) -> {
+            if (load && !next.contains(pack))
+                next.add(pack);
+        });
+        changes.clear();
+        desired = next;
+        urgent = true;
+        return this;
+    }
+
+    public StackTransaction load(AbstractResourcePack pack) {
+        urgent = true;
+        if (desired != null) {
+            if (!desired.contains(pack))
+                desired.add(pack);
+            return this;
+        }
+
+        flattenPlan();
+        changes.put(pack, true);
+        return this;
+    }
+
+    /**
+     * Loads every pack of a plan.
+     */
+    public StackTransaction load(PackPlan plan) {
+        if (plan.isEmpty())
+            return this;
+
+        urgent = true;
+        if (desired != null) {
+            plan.getPacks().forEach(this::load);
+            return this;
+        }
+
+        if (changes.isEmpty() && this.plan == null) {
+            this.plan = plan;
+            return this;
+        }
+
+        flattenPlan();
+        plan.getPacks().forEach(pack -> changes.put(pack, true));
+        return this;
+    }
+
+    /**
+     * Loads a plan ahead of need, such as the packs of a world the player is about to enter. Unless other
+     * changes join the transaction, it is admitted after every other waiting request.
+     */
+    public StackTransaction prefetch(PackPlan plan) {
+        boolean urgent = this.urgent;
+        load(plan);
+        this.urgent = urgent;
+        return this;
+    }
+
+    public StackTransaction unload(AbstractResourcePack pack) {
+        urgent = true;
+        if (desired != null) {
+            desired.remove(pack);
+            return this;
+        }
+
+        flattenPlan();
+        changes.put(pack, false);
+        return this;
+    }
+
+    /**
+     * @param listener called on commit with the packs that were requested, if any
+     */
+    public StackTransaction onRequested(Consumer<List<AbstractResourcePack>> listener) {
+        if (listener != null)
+            requestListeners.add(listener);
+        return this;
+    }
+
+    private void flattenPlan() {
+        if (plan == null)
+            return;
+
+        plan.getPacks().forEach(pack -> changes.put(pack, true));
+        plan = null;
+    }
+
+    /**
+     * Applies the changes. Packs the player already has are not requested again, and unloads of packs the
+     * player neither has nor is downloading are skipped.
+     */
+    public void commit() {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(playerId);
+        if (packPlayer == null) {
+            requested(List.of());
+            return;
+        }
+
+        if (desired != null) {
+            // Diffed from the mailbox so every earlier request and removal is reflected in the stack
+            List<AbstractResourcePack> target = List.copyOf(desired);
+            packPlayer.post(() -> {
+                try {
+                    applyStack(packPlayer, target);
+                } catch (RuntimeException e) {
+                    requested(List.of());
+                    throw e;
+                }
+            });
+            return;
+        }
+
+        List<AbstractResourcePack> loads = new ArrayList<>();
+        List<UUID> removals = new ArrayList<>();
+        changes.forEach((pack, load) -> {
+            if (load) {
+                loads.add(pack);
+            } else if (packPlayer.hasPack(pack) || packPlayer.isPending(pack)) {
+                removals.add(pack.getUuid());
+                packPlayer.transition(pack, PackTransition.REMOVED);
+            }
+        });
+
+        if (!removals.isEmpty())
+            audience.removeResourcePacks(removals);
+
+        PackPlan sending = plan;
+        if (sending == null)
+            sending = loads.isEmpty() ? PackPlan.EMPTY : loads.size() == 1 ? loads.get(0).getPlan() : PackPlan.of(loads);
+        if (sending.isEmpty()) {
+            requested(List.of());
+            return;
+        }
+
+        // Queued behind the removals so packs being replaced are no longer marked as held when claimed
+        PackPlan toSend = sending;
+        packPlayer.post(() -> send(toSend));
+    }
+
+    /**
+     * Packs can only be added on top of the client's stack, so the packs kept in place are the longest
+     * prefix of the target found in order in the current stack. Everything else in the current stack is
+     * removed, and the rest of the target is sent in one request.
+     */
+    private void applyStack(PackPlayer packPlayer, List<AbstractResourcePack> target) {
+        PackCatalog catalog = PackCache.getInstance().getCatalog();
+        List<UUID> removals = new ArrayList<>();
+        int kept = 0;
+        for (int ordinal : packPlayer.getStackOrdinals()) {
+            if (kept < target.size() && target.get(kept).getOrdinal() == ordinal) {
+                kept++;
+                continue;
+            }
+
+            AbstractResourcePack pack = catalog.get(ordinal);
+            // Left where it is in the stack, like an unload command would
+            if (pack == null || pack.isRequired() && !pack.getPlugin().hasPermission(audience, "pack.bypass"))
+                continue;
+            removals.add(pack.getUuid());
+            packPlayer.transition(pack, PackTransition.REMOVED);
+        }
+
+        if (!removals.isEmpty())
+            audience.removeResourcePacks(removals);
+
+        if (kept < target.size()) {
+            PackPlan suffix = PackPlan.inOrder(target.subList(kept, target.size()));
+            packPlayer.post(() -> send(suffix));
+        } else {
+            requested(List.of());
+        }
+    }
+
+    private void send(PackPlan sending) {
+        List<AbstractResourcePack> requested = List.of();
+        try {
+            requested = sending.send(audience, playerId);
+        } finally {
+            requested(requested);
+        }
+    }
+
+    /**
+     * Called once per commit with the packs that were sent, also when the commit failed, so the admission
+     * ticket is always released.
+     */
+    private void requested(List<AbstractResourcePack> requested) {
+        AdmissionScheduler.getInstance().started(ticket, requested);
+        if (!requested.isEmpty())
+            requestListeners.forEach(listener -> listener.accept(requested));
+    }
+}
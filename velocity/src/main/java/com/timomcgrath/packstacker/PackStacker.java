@@ -21,11 +21,14 @@ package com.timomcgrath.packstacker;
 import com.google.inject.Inject;
 import com.timomcgrath.packstacker.command.PackCommand;
 import com.timomcgrath.packstacker.factory.VelocityResourcePackFactory;
+import com.timomcgrath.packstacker.listener.ConfigurationListener;
 import com.timomcgrath.packstacker.listener.PackListener;
+import com.timomcgrath.packstacker.listener.SyncListener;
 import com.velocitypowered.api.command.CommandManager;
 import com.velocitypowered.api.command.CommandMeta;
 import com.velocitypowered.api.command.SimpleCommand;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
+import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
@@ -36,7 +39,9 @@ import org.slf4j.Logger;
 
 import java.nio.file.Path;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @Plugin(
         id = "packstacker",
@@ -62,11 +67,16 @@ public class PackStacker implements PackPlugin {
 
     @Subscribe
     public void onProxyInitialization(ProxyInitializeEvent event) {
-        FileLoader fileLoader = new FileLoader(dataDirectory);
-        fileLoader.loadMessages();
-        fileLoader.loadPacks(new VelocityResourcePackFactory());
+        reloadAll();
 
         server.getEventManager().register(this, new PackListener());
+        server.getEventManager().register(this, new ConfigurationListener());
+
+        server.getChannelRegistrar().register(SyncListener.IDENTIFIER);
+        server.getEventManager().register(this, new SyncListener());
+        PackSync.getInstance().enable(this, (playerId, data) -> server.getPlayer(playerId)
+                .flatMap(Player::getCurrentServer)
+                .ifPresent(connection -> connection.sendPluginMessage(SyncListener.IDENTIFIER, data)));
 
         CommandManager commandManager = server.getCommandManager();
         CommandMeta commandMeta = commandManager.metaBuilder("pack")
@@ -76,6 +86,24 @@ public class PackStacker implements PackPlugin {
 
         SimpleCommand packCommand = new PackCommand(this);
         commandManager.register(commandMeta, packCommand);
+
+        server.getScheduler().buildTask(this, this::sweepSessions)
+                .delay(PlayerPackCache.SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES)
+                .repeat(PlayerPackCache.SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES)
+                .schedule();
+    }
+
+    private void sweepSessions() {
+        int evicted = PlayerPackCache.getInstance().sweep(this::isOnline);
+        OnlinePlayerIndex.getInstance().sweep(this::isOnline);
+        if (evicted > 0)
+            logger.info("Evicted {} stale player session(s), {} remaining.", evicted, PlayerPackCache.getInstance().size());
+    }
+
+    @Subscribe
+    public void onProxyShutdown(ProxyShutdownEvent event) {
+        PackDirectoryWatcher.shutdown();
+        FileLoader.shutdown();
     }
 
     public ProxyServer getServer() {
@@ -97,16 +125,21 @@ public class PackStacker implements PackPlugin {
     }
 
     @Override
-    public void reloadPacks() {
+    public CompletableFuture<PackLoadReport> reloadPacks() {
         FileLoader fileLoader = new FileLoader(dataDirectory);
-        fileLoader.loadPacks(new VelocityResourcePackFactory());
+        fileLoader.loadConfig();
+        ResourcePackFactory factory = new VelocityResourcePackFactory();
+        return fileLoader.loadPacksAsync(factory).thenApply(report -> {
+            runLater(() -> report.getDiff().dispatch(this), 0);
+            PackDirectoryWatcher.configure(this, fileLoader, factory);
+            return report;
+        });
     }
 
     @Override
-    public void reloadAll() {
-        FileLoader fileLoader = new FileLoader(dataDirectory);
-        fileLoader.loadMessages();
-        fileLoader.loadPacks(new VelocityResourcePackFactory());
+    public CompletableFuture<PackLoadReport> reloadAll() {
+        reloadMessages();
+        return reloadPacks();
     }
 
     @Override
@@ -119,6 +152,21 @@ public class PackStacker implements PackPlugin {
 
     @Override
     public List<String> getOnlinePlayers() {
-        return server.getAllPlayers().parallelStream().map(player -> player.getUsername().toLowerCase()).collect(Collectors.toList());
+        return OnlinePlayerIndex.getInstance().getNames();
+    }
+
+    @Override
+    public boolean isOnline(UUID playerId) {
+        return server.getPlayer(playerId).isPresent();
+    }
+
+    @Override
+    public Audience getAudience(UUID playerId) {
+        return server.getPlayer(playerId).orElse(null);
+    }
+
+    @Override
+    public void runLater(Runnable task, long delayMillis) {
+        server.getScheduler().buildTask(this, task).delay(delayMillis, TimeUnit.MILLISECONDS).schedule();
     }
 }
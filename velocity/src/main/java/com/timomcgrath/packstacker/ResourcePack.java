@@ -27,10 +27,18 @@ import java.util.Optional;
 import java.util.UUID;
 
 public class ResourcePack extends AbstractResourcePack {
+    /**
+     * @deprecated build the pack from a {@link PackDefinition} instead
+     */
+    @Deprecated
     public ResourcePack(PackPlugin plugin, String name, String hash, Component prompt, String url, byte priority, boolean isRequired, boolean loadOnJoin) {
         super(name, hash, prompt, url, priority, isRequired, loadOnJoin, plugin);
     }
 
+    public ResourcePack(PackPlugin plugin, PackDefinition definition) {
+        super(definition, plugin);
+    }
+
     @Override
     public void packCallback(UUID packId, ResourcePackStatus status, Audience audience, UUID playerId) {
         Optional<Player> playerOpt = PackStacker.getInstance().getServer().getPlayer(playerId);
@@ -41,12 +49,16 @@ public class ResourcePack extends AbstractResourcePack {
         PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(player.getUniqueId());
         AbstractResourcePack pack = PackCache.getInstance().get(packId);
 
+        if (packPlayer == null || pack == null)
+            return;
+
         switch (status) {
             case SUCCESSFULLY_LOADED:
-                packPlayer.addPack(pack);
-                audience.sendMessage(Messaging.get("pack_successfully_loaded", pack.getName()));
+                packPlayer.transition(pack, PackTransition.LOADED);
+                Messaging.sendMsg(audience, "pack_successfully_loaded", pack.getName());
                 break;
             case ACCEPTED:
+                packPlayer.transition(pack, PackTransition.ACCEPTED);
                 Messaging.sendMsg(audience, "pack_accepted", pack.getName());
                 break;
             case DECLINED:
@@ -54,14 +66,15 @@ public class ResourcePack extends AbstractResourcePack {
             case INVALID_URL:
             case FAILED_RELOAD:
             case FAILED_DOWNLOAD:
-                audience.sendMessage(Messaging.get("pack_failed_load", pack.getName(), status.name()));
+                packPlayer.transition(pack, PackTransition.FAILED);
+                Messaging.sendMsg(audience, "pack_failed_load", pack.getName(), status.name());
                 PackStacker.getInstance().getLogger().info(player.getUniqueId() + " " + player.hasPermission("pack.bypass"));
 
                 if (player.hasPermission("pack.bypass"))
                     break;
 
                 if (pack.isRequired())
-                    player.disconnect(Messaging.get("pack_req_kick"));
+                    player.disconnect(Messaging.get(player, "pack_req_kick"));
         }
     }
 }
@@ -26,7 +26,6 @@ import net.kyori.adventure.audience.Audience;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 
 public class PackCommand extends AbstractPackCommand implements SimpleCommand {
     public PackCommand(PackPlugin plugin) {
@@ -46,11 +45,6 @@ public class PackCommand extends AbstractPackCommand implements SimpleCommand {
         return suggest(invocation.source(), invocation.arguments());
     }
 
-    @Override
-    public CompletableFuture<List<String>> suggestAsync(Invocation invocation) {
-        return SimpleCommand.super.suggestAsync(invocation);
-    }
-
     @Override
     public boolean hasPermission(Invocation invocation) {
         return SimpleCommand.super.hasPermission(invocation);
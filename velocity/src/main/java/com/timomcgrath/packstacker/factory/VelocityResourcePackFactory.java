@@ -19,32 +19,14 @@
 package com.timomcgrath.packstacker.factory;
 
 import com.timomcgrath.packstacker.AbstractResourcePack;
+import com.timomcgrath.packstacker.PackDefinition;
 import com.timomcgrath.packstacker.PackStacker;
 import com.timomcgrath.packstacker.ResourcePack;
 import com.timomcgrath.packstacker.ResourcePackFactory;
-import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.minimessage.MiniMessage;
-import ninja.leaping.configurate.ConfigurationNode;
 
 public class VelocityResourcePackFactory implements ResourcePackFactory {
     @Override
-    public AbstractResourcePack create(ConfigurationNode root) {
-        String name, hash, url, promptStr;
-        byte priority;
-        boolean isRequired, loadOnJoin;
-
-        name = root.getNode("name").getString();
-        hash = root.getNode("hash").getString();
-        url = root.getNode("url").getString();
-        promptStr = root.getNode("prompt").getString();
-        priority = (byte) root.getNode("priority").getInt(0);
-        isRequired = root.getNode("required").getBoolean(false);
-        loadOnJoin = root.getNode("load_on_join").getBoolean();
-
-        Component prompt = null;
-        if (promptStr != null)
-            prompt = MiniMessage.miniMessage().deserialize(promptStr);
-
-        return new ResourcePack(PackStacker.getInstance(), name, hash, prompt, url, priority, isRequired, loadOnJoin);
+    public AbstractResourcePack create(PackDefinition definition) {
+        return new ResourcePack(PackStacker.getInstance(), definition);
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker.listener;
+
+import com.timomcgrath.packstacker.PackStacker;
+import com.timomcgrath.packstacker.PackStackerUtil;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.configuration.PlayerConfigurationEvent;
+import com.velocitypowered.api.event.player.configuration.PlayerFinishConfigurationEvent;
+import com.velocitypowered.api.proxy.Player;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends join packs while 1.20.2+ clients are in the configuration phase, before any world is rendered, so
+ * the download overlaps the login. Older clients never enter the configuration phase and get their packs
+ * from {@link PackListener} once connected, which also skips whatever was already sent here.
+ */
+public class ConfigurationListener {
+    private static final Set<UUID> configuring = ConcurrentHashMap.newKeySet();
+
+    @Subscribe
+    public void onConfiguration(PlayerConfigurationEvent event) {
+        Player player = event.player();
+        configuring.add(player.getUniqueId());
+        PackStackerUtil.sendJoinPlan(PackStacker.getInstance(), player, player.getUniqueId());
+    }
+
+    @Subscribe
+    public void onFinishConfiguration(PlayerFinishConfigurationEvent event) {
+        configuring.remove(event.player().getUniqueId());
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        configuring.remove(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * @return true while the player is in the configuration phase, where chat messages cannot be shown.
+     */
+    public static boolean isConfiguring(UUID playerId) {
+        return configuring.contains(playerId);
+    }
+}
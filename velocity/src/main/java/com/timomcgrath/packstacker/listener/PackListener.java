@@ -22,6 +22,7 @@ import com.timomcgrath.packstacker.*;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.DisconnectEvent;
 import com.velocitypowered.api.event.connection.PostLoginEvent;
+import com.velocitypowered.api.event.player.PlayerChatEvent;
 import com.velocitypowered.api.event.player.PlayerResourcePackStatusEvent;
 import com.velocitypowered.api.event.player.ServerPostConnectEvent;
 import com.velocitypowered.api.proxy.Player;
@@ -33,7 +34,17 @@ public class PackListener {
     public void onPlayerJoin(ServerPostConnectEvent event) {
         Player player = event.getPlayer();
 
-        PackStackerUtil.loadMultiple(player, player.getUniqueId(), PackStackerUtil.getPacksToLoadOnJoin());
+        PackStackerUtil.loadJoinPlan(PackStacker.getInstance(), player, player.getUniqueId(), null);
+        // The new backend starts without state, tell it what the client holds and what the proxy is sending
+        PackSync.getInstance().sendSnapshot(player.getUniqueId(), PackCache.getInstance().getCatalog().getJoinPlan());
+    }
+
+    // The proxy does not see movement, chat is the input it can use to tell whether a player is idle
+    @Subscribe
+    public void onPlayerChat(PlayerChatEvent event) {
+        PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(event.getPlayer().getUniqueId());
+        if (packPlayer != null)
+            packPlayer.touch();
     }
 
     @Subscribe
@@ -51,33 +62,44 @@ public class PackListener {
         AbstractResourcePack pack = PackCache.getInstance().get(hash);
         PackPlayer packPlayer = PlayerPackCache.getInstance().getPlayer(player.getUniqueId());
         PlayerResourcePackStatusEvent.Status status = event.getStatus();
+        // Chat cannot be shown during the configuration phase
+        boolean notify = !ConfigurationListener.isConfiguring(player.getUniqueId());
 
-        if (pack == null)
+        if (pack == null || packPlayer == null)
             return;
 
         switch (status) {
             case SUCCESSFUL:
-                packPlayer.addPack(pack);
-                Messaging.sendMsg(player, "pack_successfully_loaded", pack.getName());
+                packPlayer.transition(pack, PackTransition.LOADED);
+                if (notify)
+                    Messaging.sendMsg(player, "pack_successfully_loaded", pack.getName());
                 break;
             case ACCEPTED:
-                Messaging.sendMsg(player, "pack_accepted", pack.getName());
+                packPlayer.transition(pack, PackTransition.ACCEPTED);
+                if (notify)
+                    Messaging.sendMsg(player, "pack_accepted", pack.getName());
                 break;
             case FAILED_DOWNLOAD:
             case DECLINED:
-                Messaging.sendMsg(player, "pack_failed_load", pack.getName(), status.name());
+                packPlayer.transition(pack, PackTransition.FAILED);
+                if (notify)
+                    Messaging.sendMsg(player, "pack_failed_load", pack.getName(), status.name());
                 if (pack.isRequired() && !player.hasPermission("pack.bypass"))
-                    player.disconnect(Messaging.get("pack_req_kick"));
+                    player.disconnect(Messaging.get(player, "pack_req_kick"));
         }
     }
 
     @Subscribe
     public void onProxyConnect(PostLoginEvent event) {
-        PlayerPackCache.getInstance().initPlayer(event.getPlayer().getUniqueId());
+        Player player = event.getPlayer();
+        PlayerPackCache.getInstance().initPlayer(player.getUniqueId());
+        OnlinePlayerIndex.getInstance().add(player.getUniqueId(), player.getUsername());
     }
 
     @Subscribe
     public void onProxyDisconnect(DisconnectEvent event) {
-        PlayerPackCache.getInstance().removePlayer(event.getPlayer().getUniqueId());
+        Player player = event.getPlayer();
+        PlayerPackCache.getInstance().removePlayer(player.getUniqueId());
+        OnlinePlayerIndex.getInstance().remove(player.getUniqueId(), player.getUsername());
     }
 }
@@ -0,0 +1,43 @@
+/*
+ * PackStacker
+ * Copyright (C) 2024 Timo McGrath
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.timomcgrath.packstacker.listener;
+
+import com.timomcgrath.packstacker.PackSync;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.PluginMessageEvent;
+import com.velocitypowered.api.proxy.ServerConnection;
+import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
+
+/**
+ * Receives the pack state backends share over {@link PackSync#CHANNEL}.
+ */
+public class SyncListener {
+    public static final MinecraftChannelIdentifier IDENTIFIER = MinecraftChannelIdentifier.from(PackSync.CHANNEL);
+
+    @Subscribe
+    public void onPluginMessage(PluginMessageEvent event) {
+        if (!IDENTIFIER.equals(event.getIdentifier()))
+            return;
+
+        // Never forwarded, so clients cannot forge pack state on the backend or reach it from the proxy
+        event.setResult(PluginMessageEvent.ForwardResult.handled());
+        if (event.getSource() instanceof ServerConnection connection)
+            PackSync.getInstance().receive(connection.getPlayer().getUniqueId(), event.getData());
+    }
+}